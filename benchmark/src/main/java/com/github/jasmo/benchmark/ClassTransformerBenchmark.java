@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import com.github.jasmo.obfuscate.ClassTransformer;
+import com.github.jasmo.obfuscate.FullAccessFlags;
+import com.github.jasmo.obfuscate.RemoveDebugInfo;
+import com.github.jasmo.obfuscate.ShuffleMembers;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Times streaming every class of the program through a {@link ClassTransformer}, from class file to class file,
+ * the way they are fused into writing the output. The baseline runs the same pass without a transformer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ClassTransformerBenchmark {
+
+	@Param({"100", "1000"})
+	public int classes;
+
+	@Param({"5"})
+	public int members;
+
+	@Param({"None", "RemoveDebugInfo", "ShuffleMembers", "FullAccessFlags"})
+	public String transformer;
+
+	private Map<String, byte[]> program;
+	private ClassTransformer instance;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		program = new SyntheticProgram(classes, members, 0).generate();
+		instance = create(transformer);
+	}
+
+	@Benchmark
+	public void transform(Blackhole blackhole) {
+		for (byte[] bytes : program.values()) {
+			ClassWriter writer = new ClassWriter(0);
+			new ClassReader(bytes).accept(instance == null ? writer : instance.transform(writer), 0);
+			blackhole.consume(writer.toByteArray());
+		}
+	}
+
+	private static ClassTransformer create(String name) {
+		switch (name) {
+			case "None":
+				return null;
+			case "RemoveDebugInfo":
+				return new RemoveDebugInfo();
+			case "ShuffleMembers":
+				return new ShuffleMembers();
+			case "FullAccessFlags":
+				return new FullAccessFlags();
+			default:
+				throw new IllegalArgumentException("Unknown transformer: " + name);
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Runs the benchmarks with the GC profiler, for allocation rates alongside the times, and saves the results as a
+ * JSON baseline in the baselines directory, named after the time of the run. Takes the usual JMH command line
+ * options, which override these defaults; for example -p classes=100,1000,10000 to change the program sizes, or
+ * -rff to save the results somewhere else, or -l to list the benchmarks.
+ */
+public class Main {
+
+	public static void main(String[] args) throws RunnerException, IOException, CommandLineOptionException {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		// listing benchmarks and the like doesn't run anything, leave it to JMH
+		if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams() ||
+				    commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+		// options set here win over the parent's, so only fill in the ones not given
+		if (!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if (!commandLine.getResult().hasValue()) {
+			Path baselines = Paths.get("baselines");
+			Files.createDirectories(baselines);
+			String name = "jmh-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json";
+			options.result(baselines.resolve(name).toString());
+		}
+		new Runner(options.build()).run();
+	}
+
+}
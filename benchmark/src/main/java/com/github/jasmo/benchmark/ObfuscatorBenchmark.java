@@ -0,0 +1,117 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import com.github.jasmo.obfuscate.*;
+import com.github.jasmo.util.UniqueStringGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Times reading the program from a jar with {@link Obfuscator#supply(Path)}, and writing it with
+ * {@link Obfuscator#write(Path)} once it has been through the same transforms as on the command line, so that
+ * writing includes renaming and the fused class transformers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ObfuscatorBenchmark {
+
+	@Param({"100", "1000"})
+	public int classes;
+
+	@Param({"5"})
+	public int members;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"false", "true"})
+	public boolean lazy;
+
+	private Path dir;
+	private Path input;
+	private Path output;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		dir = Files.createTempDirectory("jasmo-benchmark");
+		input = dir.resolve("input.jar");
+		output = dir.resolve("output.jar");
+		SyntheticProgram.write(new SyntheticProgram(classes, members, 0).generate(), input);
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		Files.deleteIfExists(input);
+		Files.deleteIfExists(output);
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public Obfuscator supply() throws IOException {
+		try (Obfuscator obfuscator = create()) {
+			obfuscator.supply(input);
+			return obfuscator;
+		}
+	}
+
+	@Benchmark
+	public void write(Transformed transformed) throws IOException {
+		transformed.obfuscator.write(output);
+	}
+
+	private Obfuscator create() {
+		Obfuscator obfuscator = new Obfuscator();
+		obfuscator.setThreads(threads);
+		obfuscator.setLazy(lazy);
+		return obfuscator;
+	}
+
+	/**
+	 * The program, supplied and transformed again before every write
+	 */
+	@State(Scope.Thread)
+	public static class Transformed {
+
+		private Obfuscator obfuscator;
+
+		@Setup(Level.Invocation)
+		public void transform(ObfuscatorBenchmark benchmark) throws IOException {
+			obfuscator = benchmark.create();
+			obfuscator.supply(benchmark.input);
+			UniqueStringGenerator generator = new UniqueStringGenerator.Default();
+			ScrambleStrings strings = new ScrambleStrings();
+			strings.setThreads(benchmark.threads);
+			obfuscator.apply(strings);
+			obfuscator.apply(new ScrambleClasses(obfuscator.getMappings(), generator, "bench"));
+			obfuscator.apply(new ScrambleFields(obfuscator.getMappings(), obfuscator.getHierarchy(), generator));
+			obfuscator.apply(new ScrambleMethods(obfuscator.getMappings(), obfuscator.getHierarchy(), generator));
+			obfuscator.apply(new InlineAccessors(obfuscator.getHierarchy()));
+			obfuscator.applyPerClass(new FullAccessFlags());
+			obfuscator.applyPerClass(new RemoveDebugInfo());
+			obfuscator.applyPerClass(new ShuffleMembers());
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() throws IOException {
+			obfuscator.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Generates a program of a given number of classes, with something for every transformer to work on: class
+ * hierarchies implementing shared interfaces, fields with getters and setters, methods calling into other classes,
+ * string constants and debug information. The same settings and seed always give the same classes.
+ * <p>
+ * The shape of the program can be changed with the setters, to build inputs far larger than any real test jar for
+ * the parts of the transformers that grow with the depth of the hierarchy or the number of accessors.
+ * <p>
+ * The code is only meant to be obfuscated, not run, so it has no branches and no frames.
+ * <p>
+ * The benchmarks build their input with it, so it is part of the main sources, next to them. {@link Scaling} uses it
+ * from the test sources.
+ */
+public class SyntheticProgram {
+
+	private static final String PACKAGE = "bench/";
+
+	/**
+	 * the number of classes sharing each interface
+	 */
+	private static final int GROUP = 10;
+
+	private final int classes;
+	private final int members;
+	private final long seed;
+	private Random random;
+
+	private int depth = 5;
+	private int fanOut = 1;
+	private int diamonds = 0;
+	private double accessors = 1;
+	private int strings = 3;
+	private int statements = 1;
+
+	/**
+	 * @param classes the number of classes, not counting interfaces
+	 * @param members the number of fields, and of methods, in each class
+	 */
+	public SyntheticProgram(int classes, int members, long seed) {
+		if (classes < 1 || members < 1)
+			throw new IllegalArgumentException("Expected at-least one class and one member, got " + classes + " and " + members);
+		this.classes = classes;
+		this.members = members;
+		this.seed = seed;
+	}
+
+	public int getClasses() {
+		return classes;
+	}
+
+	/**
+	 * @param depth the most classes in a chain of super classes, defaults to 5
+	 */
+	public SyntheticProgram setDepth(int depth) {
+		this.depth = Math.max(1, depth);
+		return this;
+	}
+
+	/**
+	 * @param fanOut the number of sub classes of each class that has any, defaults to 1 (straight chains)
+	 */
+	public SyntheticProgram setFanOut(int fanOut) {
+		this.fanOut = Math.max(1, fanOut);
+		return this;
+	}
+
+	/**
+	 * @param diamonds the number of diamonds stacked above each shared interface, where two interfaces extend the
+	 *                 one above and are both extended by the one below, all declaring the same method. Defaults to 0
+	 */
+	public SyntheticProgram setDiamonds(int diamonds) {
+		this.diamonds = Math.max(0, diamonds);
+		return this;
+	}
+
+	/**
+	 * @param accessors the share of fields (0 to 1) that have a getter and setter, the rest are used directly.
+	 *                  Defaults to 1
+	 */
+	public SyntheticProgram setAccessors(double accessors) {
+		this.accessors = Math.min(1, Math.max(0, accessors));
+		return this;
+	}
+
+	/**
+	 * @param strings the number of string constants in each method, defaults to 3
+	 */
+	public SyntheticProgram setStrings(int strings) {
+		this.strings = Math.max(0, strings);
+		return this;
+	}
+
+	/**
+	 * @param statements the number of times each method repeats its body of field access and calls, defaults to 1
+	 */
+	public SyntheticProgram setStatements(int statements) {
+		this.statements = Math.max(1, statements);
+		return this;
+	}
+
+	/**
+	 * @return the class files of the program, by class name
+	 */
+	public Map<String, byte[]> generate() {
+		Map<String, byte[]> result = new LinkedHashMap<>();
+		generate(result::put);
+		return result;
+	}
+
+	/**
+	 * Writes the program to a jar, one class at a time so that large programs are never held in memory
+	 */
+	public void write(Path jar) throws IOException {
+		try (OutputStream out = Files.newOutputStream(jar); JarOutputStream jos = new JarOutputStream(out)) {
+			try {
+				generate((name, bytes) -> {
+					try {
+						jos.putNextEntry(new JarEntry(name + ".class"));
+						jos.write(bytes);
+						jos.closeEntry();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Writes the program to a jar, as the obfuscator would be given it
+	 */
+	public static void write(Map<String, byte[]> program, Path jar) throws IOException {
+		try (OutputStream out = Files.newOutputStream(jar); JarOutputStream jos = new JarOutputStream(out)) {
+			for (Map.Entry<String, byte[]> entry : program.entrySet()) {
+				jos.putNextEntry(new JarEntry(entry.getKey() + ".class"));
+				jos.write(entry.getValue());
+				jos.closeEntry();
+			}
+		}
+	}
+
+	/**
+	 * @return the program parsed into a fresh class map, as the transformers are given it
+	 */
+	public static Map<String, ClassNode> parse(Map<String, byte[]> program) {
+		Map<String, ClassNode> classMap = new HashMap<>();
+		for (byte[] bytes : program.values()) {
+			ClassNode node = new ClassNode();
+			new ClassReader(bytes).accept(node, 0);
+			classMap.put(node.name, node);
+		}
+		return classMap;
+	}
+
+	private void generate(BiConsumer<String, byte[]> out) {
+		random = new Random(seed);
+		for (int k = 0; k < (classes + GROUP - 1) / GROUP; k++) {
+			out.accept(getInterface(k, 0, ""), createInterface(getInterface(k, 0, "")));
+			for (int level = 1; level <= diamonds; level++) {
+				String above = getInterface(k, level - 1, "");
+				String left = getInterface(k, level, "L");
+				String right = getInterface(k, level, "R");
+				out.accept(left, createInterface(left, above));
+				out.accept(right, createInterface(right, above));
+				out.accept(getInterface(k, level, ""), createInterface(getInterface(k, level, ""), left, right));
+			}
+		}
+		int tree = getTreeSize();
+		for (int i = 0; i < classes; i++)
+			out.accept(getClass(i), createClass(i, tree));
+	}
+
+	/**
+	 * @return the number of classes in each tree of the hierarchy, which is full down to the depth
+	 */
+	private int getTreeSize() {
+		long size = 0;
+		long level = 1;
+		for (int d = 0; d < depth && size < classes; d++) {
+			size += level;
+			level *= fanOut;
+		}
+		return (int) Math.min(size, classes);
+	}
+
+	private String getInterface(int k, int level, String side) {
+		return PACKAGE + "Service" + k + "_" + level + side;
+	}
+
+	/**
+	 * @return the interface implemented by the classes of this group, at the bottom of any diamonds
+	 */
+	private String getInterface(int k) {
+		return getInterface(k, diamonds, "");
+	}
+
+	private static String getClass(int i) {
+		return PACKAGE + "Type" + i;
+	}
+
+	private boolean hasAccessors(int f) {
+		return f < Math.round(members * accessors);
+	}
+
+	private byte[] createInterface(String name, String... interfaces) {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_ABSTRACT | ACC_INTERFACE, name, null, "java/lang/Object", interfaces);
+		cw.visitMethod(ACC_PUBLIC | ACC_ABSTRACT, "run", "(I)Ljava/lang/String;", null, null).visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private byte[] createClass(int i, int tree) {
+		String name = getClass(i);
+		// classes are numbered breadth first within each tree
+		int index = i % tree;
+		String superName = index == 0 ? "java/lang/Object" : getClass(i - index + (index - 1) / fanOut);
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, name, null, superName, new String[]{getInterface(i / GROUP)});
+		cw.visitSource("Type" + i + ".java", null);
+		// constructor
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, superName, "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		// fields, with a getter and setter for some
+		for (int f = 0; f < members; f++) {
+			String field = "field" + i + "_" + f;
+			cw.visitField(ACC_PRIVATE, field, "I", null, null).visitEnd();
+			if (!hasAccessors(f))
+				continue;
+			mv = cw.visitMethod(ACC_PUBLIC, "get" + field, "()I", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitFieldInsn(GETFIELD, name, field, "I");
+			mv.visitInsn(IRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			mv = cw.visitMethod(ACC_PUBLIC, "set" + field, "(I)V", null, null);
+			mv.visitCode();
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ILOAD, 1);
+			mv.visitFieldInsn(PUTFIELD, name, field, "I");
+			mv.visitInsn(RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		// methods that use the fields, strings and other classes
+		for (int m = 0; m < members; m++)
+			createMethod(cw, i, m);
+		// the interface method, overridden again by every sub class
+		mv = cw.visitMethod(ACC_PUBLIC, "run", "(I)Ljava/lang/String;", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitVarInsn(ILOAD, 1);
+		mv.visitMethodInsn(INVOKEVIRTUAL, name, "method" + i + "_0", "(I)Ljava/lang/String;", false);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private void createMethod(ClassWriter cw, int i, int m) {
+		String name = getClass(i);
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "method" + i + "_" + m, "(I)Ljava/lang/String;", null, null);
+		mv.visitCode();
+		Label start = new Label();
+		Label end = new Label();
+		mv.visitLabel(start);
+		mv.visitVarInsn(ILOAD, 1);
+		mv.visitVarInsn(ISTORE, 2);
+		for (int s = 0; s < statements; s++) {
+			Label line = new Label();
+			mv.visitLabel(line);
+			mv.visitLineNumber(10 + s, line);
+			// sum = sum + getField...() + ...;
+			mv.visitVarInsn(ILOAD, 2);
+			for (int f = 0; f < Math.min(members, 3); f++) {
+				mv.visitVarInsn(ALOAD, 0);
+				visitField(mv, i, f, false);
+				mv.visitInsn(IADD);
+			}
+			mv.visitVarInsn(ISTORE, 2);
+			// setField...(sum);
+			mv.visitVarInsn(ALOAD, 0);
+			mv.visitVarInsn(ILOAD, 2);
+			visitField(mv, i, (m + s) % members, true);
+			// new Type<other>().run(sum);
+			int other = random.nextInt(classes);
+			mv.visitTypeInsn(NEW, getClass(other));
+			mv.visitInsn(DUP);
+			mv.visitMethodInsn(INVOKESPECIAL, getClass(other), "<init>", "()V", false);
+			mv.visitVarInsn(ILOAD, 2);
+			mv.visitMethodInsn(INVOKEINTERFACE, getInterface(other / GROUP), "run", "(I)Ljava/lang/String;", true);
+			mv.visitInsn(POP);
+		}
+		// return "..." + "..." + ...;
+		mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "()V", false);
+		for (int s = 0; s < strings; s++) {
+			// some strings are shared between classes, as they would be in a real program
+			mv.visitLdcInsn(random.nextBoolean() ? "shared " + random.nextInt(100) : "string " + i + " " + m + " " + s);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+		}
+		mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+		mv.visitInsn(ARETURN);
+		mv.visitLabel(end);
+		mv.visitLocalVariable("this", "L" + name + ";", null, start, end, 0);
+		mv.visitLocalVariable("value", "I", null, start, end, 1);
+		mv.visitLocalVariable("sum", "I", null, start, end, 2);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Reads or writes a field of the class, through its accessor if it has one
+	 */
+	private void visitField(MethodVisitor mv, int i, int f, boolean set) {
+		String field = "field" + i + "_" + f;
+		if (hasAccessors(f))
+			mv.visitMethodInsn(INVOKEVIRTUAL, getClass(i), (set ? "set" : "get") + field, set ? "(I)V" : "()I", false);
+		else
+			mv.visitFieldInsn(set ? PUTFIELD : GETFIELD, getClass(i), field, "I");
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import com.github.jasmo.obfuscate.*;
+import com.github.jasmo.util.UniqueStringGenerator;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Times one run of a tree {@link Transformer} over the whole program. Every invocation is given freshly parsed
+ * classes and an up to date {@link Hierarchy}, the same as {@link Obfuscator#apply(Transformer)} gives it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransformerBenchmark {
+
+	@Param({"100", "1000"})
+	public int classes;
+
+	@Param({"5"})
+	public int members;
+
+	@Param({"ScrambleClasses", "ScrambleFields", "ScrambleMethods", "ScrambleStrings", "InlineAccessors"})
+	public String transformer;
+
+	private Map<String, byte[]> program;
+	private Map<String, ClassNode> classMap;
+	private Transformer instance;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		program = new SyntheticProgram(classes, members, 0).generate();
+	}
+
+	@Setup(Level.Invocation)
+	public void prepare() {
+		classMap = SyntheticProgram.parse(program);
+		Hierarchy hierarchy = new Hierarchy();
+		hierarchy.update(classMap);
+		instance = create(transformer, new Mappings(), hierarchy);
+	}
+
+	@Benchmark
+	public Map<String, ClassNode> transform() {
+		instance.transform(classMap);
+		return classMap;
+	}
+
+	private static Transformer create(String name, Mappings mappings, Hierarchy hierarchy) {
+		UniqueStringGenerator generator = new UniqueStringGenerator.Default();
+		switch (name) {
+			case "ScrambleClasses":
+				return new ScrambleClasses(mappings, generator, "");
+			case "ScrambleFields":
+				return new ScrambleFields(mappings, hierarchy, generator);
+			case "ScrambleMethods":
+				return new ScrambleMethods(mappings, hierarchy, generator);
+			case "ScrambleStrings":
+				return new ScrambleStrings();
+			case "InlineAccessors":
+				return new InlineAccessors(hierarchy);
+			default:
+				throw new IllegalArgumentException("Unknown transformer: " + name);
+		}
+	}
+
+}
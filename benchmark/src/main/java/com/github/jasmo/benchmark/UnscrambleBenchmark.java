@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import com.github.jasmo.obfuscate.ScrambleStrings;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.ClassNode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Times calling a method that returns one of a few string constants, in a loop, once {@link ScrambleStrings} is
+ * done with its class. The baseline leaves the constants as they are, the others load them through the unscramble
+ * method and its cache, or through invokedynamic call sites linked to the decoded strings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class UnscrambleBenchmark {
+
+	private static final String NAME = "bench/Strings";
+	private static final int STRINGS = 16;
+	private static final int CALLS = 1024;
+
+	@Param({"None", "ScrambleStrings", "ScrambleStrings-dynamic"})
+	public String variant;
+
+	private IntFunction<?> strings;
+
+	@Setup(Level.Trial)
+	public void load() throws ReflectiveOperationException {
+		Map<String, ClassNode> classMap = SyntheticProgram.parse(Collections.singletonMap(NAME, generate()));
+		switch (variant) {
+			case "None":
+				break;
+			case "ScrambleStrings":
+				new ScrambleStrings().transform(classMap);
+				break;
+			case "ScrambleStrings-dynamic":
+				ScrambleStrings strings = new ScrambleStrings();
+				strings.setDynamic(true);
+				strings.transform(classMap);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown variant: " + variant);
+		}
+		Map<String, byte[]> classes = new HashMap<>();
+		for (ClassNode cn : classMap.values()) {
+			// the transformer adds frames to what it generates, as the obfuscator doesn't compute them
+			ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+			cn.accept(writer);
+			classes.put(cn.name, writer.toByteArray());
+		}
+		Class<?> type = new Loader(classes).loadClass(NAME.replace('/', '.'));
+		strings = (IntFunction<?>) type.getConstructor().newInstance();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CALLS)
+	public void call(Blackhole blackhole) {
+		for (int i = 0; i < CALLS; i++)
+			blackhole.consume(strings.apply(i % STRINGS));
+	}
+
+	/**
+	 * @return a class whose apply method picks one of the constants with a switch
+	 */
+	private static byte[] generate() {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(V1_8, ACC_PUBLIC | ACC_SUPER, NAME, null, "java/lang/Object", new String[]{"java/util/function/IntFunction"});
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, 0);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(ACC_PUBLIC, "apply", "(I)Ljava/lang/Object;", null, null);
+		mv.visitCode();
+		Label[] cases = new Label[STRINGS];
+		for (int i = 0; i < STRINGS; i++)
+			cases[i] = new Label();
+		Label other = new Label();
+		mv.visitVarInsn(ILOAD, 1);
+		mv.visitTableSwitchInsn(0, STRINGS - 1, other, cases);
+		for (int i = 0; i < STRINGS; i++) {
+			mv.visitLabel(cases[i]);
+			mv.visitLdcInsn("string constant " + i);
+			mv.visitInsn(ARETURN);
+		}
+		mv.visitLabel(other);
+		mv.visitInsn(ACONST_NULL);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static class Loader extends ClassLoader {
+
+		private final Map<String, byte[]> classes;
+
+		private Loader(Map<String, byte[]> classes) {
+			super(Loader.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			byte[] bytes = classes.get(name.replace('.', '/'));
+			if (bytes == null)
+				throw new ClassNotFoundException(name);
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+
+	}
+
+}
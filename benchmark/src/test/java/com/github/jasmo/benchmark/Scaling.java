@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.benchmark;
+
+import com.github.jasmo.Bootstrap;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.ThreadMXBean;
+import org.apache.commons.cli.*;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Runs the whole {@link Bootstrap} pipeline over generated programs of growing size, and fails if the time, the
+ * memory allocated or the memory still in use after garbage collection grows much faster than the number of classes.
+ * <p>
+ * Everything runs in this JVM, after a warm up at the smallest size. Unless other options for the obfuscator are
+ * given after '--' it runs with the default options on one thread, so that the allocation of the current thread is the
+ * allocation of the run.
+ */
+public class Scaling {
+
+	private static final long MB = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		Options options = new Options()
+				                  .addOption("h", "help", false, "Print help message")
+				                  .addOption("s", "sizes", true, "Comma separated numbers of classes (defaults to 1000,10000,100000)")
+				                  .addOption("T", "tolerance", true, "How many times faster than linear anything may grow between sizes (defaults to 2)")
+				                  .addOption("o", "output", true, "Keep the generated and obfuscated jars in this directory")
+				                  .addOption("m", "members", true, "Fields, and methods, in each class (defaults to 5)")
+				                  .addOption("d", "depth", true, "Most classes in a chain of super classes (defaults to 5)")
+				                  .addOption("f", "fan-out", true, "Sub classes of each class that has any (defaults to 1)")
+				                  .addOption("D", "diamonds", true, "Interface diamonds above each shared interface (defaults to 0)")
+				                  .addOption("a", "accessors", true, "Share of fields with a getter and setter (defaults to 1)")
+				                  .addOption("S", "strings", true, "String constants in each method (defaults to 3)")
+				                  .addOption("n", "statements", true, "Times each method repeats its body (defaults to 1)");
+		CommandLine cl;
+		try {
+			cl = new DefaultParser().parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			help(options);
+			System.exit(-1);
+			return;
+		}
+		if (cl.hasOption("help")) {
+			help(options);
+			return;
+		}
+		int[] sizes = Arrays.stream(cl.getOptionValue("sizes", "1000,10000,100000").split(","))
+				              .mapToInt(s -> Integer.parseInt(s.trim())).sorted().toArray();
+		double tolerance = Double.parseDouble(cl.getOptionValue("tolerance", "2"));
+		List<String> extra = cl.getArgList();
+		if (extra.isEmpty())
+			extra = Arrays.asList("--threads", "1");
+		Path dir = cl.hasOption("output") ? Files.createDirectories(Paths.get(cl.getOptionValue("output"))) : Files.createTempDirectory("jasmo-scaling");
+		GcListener gc = new GcListener();
+		// warm up, so that compiling the obfuscator is not counted against the smallest size
+		run(create(cl, sizes[0]), dir, extra, gc);
+		Result[] results = new Result[sizes.length];
+		System.out.printf("%10s %10s %14s %12s%n", "classes", "seconds", "allocated MB", "retained MB");
+		for (int i = 0; i < sizes.length; i++) {
+			results[i] = run(create(cl, sizes[i]), dir, extra, gc);
+			System.out.printf("%10d %10.2f %14d %12d%n", sizes[i], results[i].time / 1e9, results[i].allocated / MB, results[i].retained / MB);
+		}
+		if (!cl.hasOption("output")) {
+			for (int size : sizes) {
+				Files.deleteIfExists(dir.resolve("input-" + size + ".jar"));
+				Files.deleteIfExists(dir.resolve("output-" + size + ".jar"));
+			}
+			Files.deleteIfExists(dir);
+		}
+		boolean failed = false;
+		for (int i = 1; i < sizes.length; i++) {
+			double expected = (double) sizes[i] / sizes[i - 1];
+			failed |= check("time", sizes[i - 1], sizes[i], results[i].time / (double) results[i - 1].time, expected, tolerance);
+			failed |= check("allocated", sizes[i - 1], sizes[i], results[i].allocated / (double) results[i - 1].allocated, expected, tolerance);
+			// small runs may finish before the first collection
+			if (results[i - 1].retained > 0 && results[i].retained > 0)
+				failed |= check("retained", sizes[i - 1], sizes[i], results[i].retained / (double) results[i - 1].retained, expected, tolerance);
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	private static SyntheticProgram create(CommandLine cl, int size) {
+		return new SyntheticProgram(size, Integer.parseInt(cl.getOptionValue("members", "5")), 0)
+				       .setDepth(Integer.parseInt(cl.getOptionValue("depth", "5")))
+				       .setFanOut(Integer.parseInt(cl.getOptionValue("fan-out", "1")))
+				       .setDiamonds(Integer.parseInt(cl.getOptionValue("diamonds", "0")))
+				       .setAccessors(Double.parseDouble(cl.getOptionValue("accessors", "1")))
+				       .setStrings(Integer.parseInt(cl.getOptionValue("strings", "3")))
+				       .setStatements(Integer.parseInt(cl.getOptionValue("statements", "1")));
+	}
+
+	private static Result run(SyntheticProgram program, Path dir, List<String> extra, GcListener gc) throws IOException {
+		Path input = dir.resolve("input-" + program.getClasses() + ".jar");
+		Path output = dir.resolve("output-" + program.getClasses() + ".jar");
+		program.write(input);
+		Files.deleteIfExists(output);
+		List<String> args = new ArrayList<>(extra);
+		args.add("--package");
+		args.add("bench");
+		args.add(input.toString());
+		args.add(output.toString());
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		System.gc();
+		gc.reset();
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		long time = System.nanoTime();
+		Bootstrap.main(args.toArray(new String[0]));
+		time = System.nanoTime() - time;
+		allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+		// errors are only logged, so check that every class made it through, the shared pool of strings may add some
+		if (!Files.exists(output) || count(output) < count(input))
+			throw new IllegalStateException("The obfuscator failed on " + program.getClasses() + " classes");
+		return new Result(time, allocated, gc.getRetained());
+	}
+
+	private static long count(Path jar) throws IOException {
+		try (JarFile file = new JarFile(jar.toFile())) {
+			return file.stream().filter(entry -> entry.getName().endsWith(".class")).count();
+		}
+	}
+
+	private static boolean check(String measure, int from, int to, double growth, double expected, double tolerance) {
+		boolean failed = growth > expected * tolerance;
+		System.out.printf("%s %s grew %.1fx from %d to %d classes (linear is %.1fx)%n", failed ? "FAIL" : "OK  ", measure, growth, from, to, expected);
+		return failed;
+	}
+
+	private static void help(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("java -cp test-classes:benchmarks.jar " + Scaling.class.getName() + " [options] [-- obfuscator options]", options);
+	}
+
+	private static class Result {
+
+		private final long time;
+		private final long allocated;
+		private final long retained;
+
+		private Result(long time, long allocated, long retained) {
+			this.time = time;
+			this.allocated = allocated;
+			this.retained = retained;
+		}
+
+	}
+
+	/**
+	 * Keeps the most heap in use after any collection since the last reset
+	 */
+	private static class GcListener implements NotificationListener {
+
+		private volatile long retained;
+
+		private GcListener() {
+			for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+				((NotificationEmitter) bean).addNotificationListener(this, null, null);
+		}
+
+		@Override
+		public void handleNotification(Notification notification, Object handback) {
+			if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+				return;
+			GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+			long used = 0;
+			for (MemoryUsage usage : info.getGcInfo().getMemoryUsageAfterGc().values())
+				used += usage.getUsed();
+			synchronized (this) {
+				retained = Math.max(retained, used);
+			}
+		}
+
+		private void reset() {
+			retained = 0;
+		}
+
+		private long getRetained() {
+			return retained;
+		}
+
+	}
+
+}
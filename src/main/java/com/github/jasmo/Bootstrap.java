@@ -8,6 +8,7 @@
 package com.github.jasmo;
 
 import com.github.jasmo.obfuscate.*;
+import com.github.jasmo.util.ClassPath;
 import com.github.jasmo.util.UniqueStringGenerator;
 import org.apache.commons.cli.*;
 import org.apache.logging.log4j.Level;
@@ -17,6 +18,9 @@ import org.apache.logging.log4j.core.LoggerContext;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.LoggerConfig;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
 public class Bootstrap {
@@ -29,7 +33,18 @@ public class Bootstrap {
 				                  .addOption("v", "verbose", false, "Increase verbosity")
 				                  .addOption("c", "cfn", true, "Enable 'crazy fucking names and set name length (large names == large output size)'")
 				                  .addOption("p", "package", true, "Move obfuscated classes to this package")
-				                  .addOption("k", "keep", true, "Don't rename this class");
+				                  .addOption("k", "keep", true, "Don't rename this class")
+				                  .addOption("l", "lazy", false, "Keep classes as bytes between transforms, lowers memory use on large inputs")
+				                  .addOption("n", "no-verify", false, "Don't verify signatures of signed input jars")
+				                  .addOption("r", "raw", false, "Copy unchanged resources and classes from input jars without recompressing them")
+				                  .addOption("t", "threads", true, "Number of worker threads (defaults to the number of processors, 1 reads serially)")
+				                  .addOption("i", "incremental", true, "Keep state in this directory, to reuse the output of classes that haven't changed since the last run")
+				                  .addOption("L", "library", true, "Library jar or directory to resolve classes from, may be repeated")
+				                  .addOption("d", "dynamic-strings", false, "Load scrambled strings through invokedynamic in classes of version 51 and up")
+				                  .addOption("s", "local-strings", false, "Give each class its own scrambled strings, decoded on first use, instead of one shared pool")
+				                  .addOption("b", "string-resource", false, "Keep the shared pool of scrambled strings in a resource instead of a static initializer")
+				                  .addOption("P", "profile", true, "Method call counts from a training run, hot methods keep their string constants")
+				                  .addOption("B", "budget", true, "Share of the profiled calls that may run scrambled code (defaults to 0.05)");
 		try {
 			CommandLineParser clp = new DefaultParser();
 			CommandLine cl = clp.parse(options, args);
@@ -45,42 +60,113 @@ public class Bootstrap {
 				ctx.updateLoggers();
 			}
 			String[] keep = cl.getOptionValues("keep");
+			String[] libraries = cl.getOptionValues("library");
 			if (cl.getArgList().size() < 2) {
 				throw new ParseException("Expected at-least two arguments");
 			}
 			log.debug("Input: {}, Output: {}", cl.getArgList().get(0), cl.getArgList().get(1));
-			Obfuscator o = new Obfuscator();
-			try {
-				o.supply(Paths.get(cl.getArgList().get(0)));
-			} catch (Exception e) {
-				log.error("An error occurred while reading the source target", e);
-				return;
-			}
-			try {
-				UniqueStringGenerator usg;
-				if (cl.hasOption("cfn")) {
-					int size = Integer.parseInt(cl.getOptionValue("cfn"));
-					usg = new UniqueStringGenerator.Crazy(size);
+			try (Obfuscator o = new Obfuscator()) {
+				if (cl.hasOption("lazy")) {
+					o.setLazy(true);
+				}
+				if (cl.hasOption("no-verify")) {
+					o.setVerify(false);
+				}
+				if (cl.hasOption("raw")) {
+					o.setPassThrough(true);
+				}
+				if (cl.hasOption("threads")) {
+					o.setThreads(Integer.parseInt(cl.getOptionValue("threads")));
+				}
+				if (libraries != null) {
+					for (String library : libraries)
+						ClassPath.getInstance().add(Paths.get(library));
+				}
+				// an input jar names the libraries it needs in its manifest
+				Path input = Paths.get(cl.getArgList().get(0));
+				if (input.toString().endsWith(".jar") && Files.isRegularFile(input))
+					ClassPath.getInstance().addManifestClassPath(input);
+				Profile profile = null;
+				if (cl.hasOption("profile")) {
+					try {
+						profile = Profile.read(Paths.get(cl.getOptionValue("profile")), Double.parseDouble(cl.getOptionValue("budget", "0.05")));
+					} catch (Exception e) {
+						log.error("An error occurred while reading the profile", e);
+						return;
+					}
+				}
+				if (cl.hasOption("incremental")) {
+					// anything that changes the output of a class invalidates the cache, libraries included as they decide
+					// which methods are overrides that keep their names
+					String library;
+					try {
+						library = ClassPath.getInstance().getFingerprint();
+					} catch (Exception e) {
+						log.error("An error occurred while reading the libraries", e);
+						return;
+					}
+					String config = "cfn=" + cl.getOptionValue("cfn", "") + ";package=" + cl.getOptionValue("package", "") +
+							                ";keep=" + (keep == null ? "" : String.join(",", keep)) +
+							                ";library=" + library +
+							                ";dynamic-strings=" + cl.hasOption("dynamic-strings") +
+							                ";local-strings=" + cl.hasOption("local-strings") +
+							                ";string-resource=" + cl.hasOption("string-resource") +
+							                ";profile=" + (profile == null ? "" : profile.getFingerprint());
+					try {
+						o.setCache(new Cache(Paths.get(cl.getOptionValue("incremental")), config));
+					} catch (Exception e) {
+						log.error("An error occurred while reading the cache", e);
+						return;
+					}
+				}
+				try {
+					o.supply(input);
+				} catch (Exception e) {
+					log.error("An error occurred while reading the source target", e);
+					return;
+				}
+				if (o.isUpToDate()) {
+					log.info("No classes have changed since the last run, skipping transforms");
+					if (cl.hasOption("string-resource"))
+						ScrambleStrings.restoreResource(o.getCache(), o.getFiles());
 				} else {
-					usg = new UniqueStringGenerator.Default();
+					try {
+						UniqueStringGenerator usg;
+						if (cl.hasOption("cfn")) {
+							int size = Integer.parseInt(cl.getOptionValue("cfn"));
+							usg = new UniqueStringGenerator.Crazy(size);
+						} else {
+							usg = new UniqueStringGenerator.Default();
+						}
+						ScrambleStrings strings = new ScrambleStrings();
+						strings.setCache(o.getCache());
+						strings.setThreads(o.getThreads());
+						strings.setDynamic(cl.hasOption("dynamic-strings"));
+						strings.setLocal(cl.hasOption("local-strings"));
+						strings.setFiles(cl.hasOption("string-resource") ? o.getFiles() : null);
+						strings.setProfile(profile);
+						o.apply(strings);
+						o.apply(new ScrambleClasses(o.getMappings(), usg, cl.getOptionValue("package", ""), keep == null ? new String[0] : keep));
+						o.apply(new ScrambleFields(o.getMappings(), o.getHierarchy(), usg));
+						o.apply(new ScrambleMethods(o.getMappings(), o.getHierarchy(), usg));
+						o.apply(new InlineAccessors(o.getHierarchy()));
+						// per-class transforms, fused into writing the output
+						o.applyPerClass(new FullAccessFlags());
+						o.applyPerClass(new RemoveDebugInfo());
+						o.applyPerClass(new ShuffleMembers());
+					} catch (Exception e) {
+						log.error("An error occurred while applying transform", e);
+						return;
+					}
 				}
-				o.apply(new FullAccessFlags());
-				o.apply(new ScrambleStrings());
-				o.apply(new ScrambleClasses(usg, cl.getOptionValue("package", ""), keep == null ? new String[0] : keep));
-				o.apply(new ScrambleFields(usg));
-				o.apply(new ScrambleMethods(usg));
-				o.apply(new InlineAccessors());
-				o.apply(new RemoveDebugInfo());
-				o.apply(new ShuffleMembers());
-			} catch (Exception e) {
-				log.error("An error occurred while applying transform", e);
-				return;
-			}
-			try {
-				o.write(Paths.get(cl.getArgList().get(1)));
-			} catch (Exception e) {
-				log.error("An error occurred while writing to the destination target", e);
-				return;
+				try {
+					o.write(Paths.get(cl.getArgList().get(1)));
+				} catch (Exception e) {
+					log.error("An error occurred while writing to the destination target", e);
+					return;
+				}
+			} catch (IOException e) {
+				log.error("An error occurred while closing the source target", e);
 			}
 		} catch (ParseException e) {
 			log.error("Failed to parse command line arguments", e);
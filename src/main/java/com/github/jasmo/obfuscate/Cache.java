@@ -0,0 +1,382 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import com.github.jasmo.util.DigestHelper;
+import com.github.jasmo.util.Parallel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * State kept between runs over the same program, for incremental obfuscation.
+ * <p>
+ * Stores the mappings and string pool of the last run, so that names and string indices stay the same, and the
+ * output of every class along with a key made of the configuration, the class file it was made from, the class
+ * files of everything it references, including their super types, and the renames of all of those classes and their
+ * members. A class whose key hasn't changed is written from the cache instead of being serialized again. The renames
+ * are part of the key since a change elsewhere can rename an unchanged class's members, such as a new class that
+ * joins the methods of two interfaces into one group, which then have to share a name. When no class file has changed at all, the transforms
+ * don't need to run in the first place (see {@link #isUpToDate()}). Otherwise every transform still runs over the
+ * whole program, since names are given out across all of it; only writing the unchanged classes is saved.
+ * <p>
+ * A cache only applies to the configuration it was made with, any other configuration starts over. The
+ * configuration should include anything else the output depends on, such as the libraries.
+ */
+public class Cache {
+
+	private static final Logger log = LogManager.getLogger("Cache");
+
+	private static final int MAGIC = 0x4a534d43;
+	private static final int VERSION = 2;
+	private static final String FILE = "jasmo.cache";
+
+	private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(DigestHelper::sha1);
+
+	private final Path file;
+	private final String config;
+	private final Map<String, Input> inputs = new HashMap<>();
+	private final Map<String, Record> previous = new HashMap<>();
+	private final Map<String, Record> records = new HashMap<>();
+	private final Map<String, byte[]> keys = new HashMap<>();
+	/**
+	 * the renames of this run by the class they belong to, each sorted
+	 */
+	private final Map<String, List<String>> renames = new HashMap<>();
+	private Map<String, String> mappings = new HashMap<>();
+	private List<String> strings = new ArrayList<>();
+	private String stringOwner;
+
+	/**
+	 * @param dir    the directory to keep the cache in
+	 * @param config the options the program is obfuscated with
+	 */
+	public Cache(Path dir, String config) throws IOException {
+		this.file = dir.resolve(FILE);
+		this.config = config;
+		if (Files.exists(file))
+			load();
+	}
+
+	private void load() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.info("Ignoring cache of an unknown format: {}", file);
+				return;
+			}
+			if (!config.equals(readString(in))) {
+				log.info("Options have changed, ignoring cache: {}", file);
+				return;
+			}
+			Map<String, String> mappings = new HashMap<>();
+			for (int i = in.readInt(); i > 0; i--)
+				mappings.put(readString(in), readString(in));
+			String stringOwner = readString(in);
+			List<String> strings = new ArrayList<>();
+			for (int i = in.readInt(); i > 0; i--)
+				strings.add(readString(in));
+			for (int i = in.readInt(); i > 0; i--) {
+				Record record = new Record();
+				record.name = readString(in);
+				record.entryName = readString(in);
+				record.input = readBytes(in);
+				record.key = readBytes(in);
+				record.bytes = readBytes(in);
+				previous.put(record.name, record);
+			}
+			this.mappings = mappings;
+			this.stringOwner = stringOwner.isEmpty() ? null : stringOwner;
+			this.strings = strings;
+			log.debug("Loaded {} classes from cache: {}", previous.size(), file);
+		} catch (EOFException e) {
+			log.warn("Ignoring truncated cache: {}", file);
+			previous.clear();
+		}
+	}
+
+	/**
+	 * Writes the cache for the next run
+	 *
+	 * @param mappings the mappings of this run, or null to keep those of the last run
+	 */
+	void save(Map<String, String> mappings) throws IOException {
+		if (mappings != null)
+			this.mappings = mappings;
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = file.resolveSibling(FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, config);
+			out.writeInt(this.mappings.size());
+			for (Map.Entry<String, String> entry : this.mappings.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+			writeString(out, stringOwner == null ? "" : stringOwner);
+			out.writeInt(strings.size());
+			for (String string : strings)
+				writeString(out, string);
+			out.writeInt(records.size());
+			for (Record record : records.values()) {
+				writeString(out, record.name);
+				writeString(out, record.entryName);
+				writeBytes(out, record.input);
+				writeBytes(out, record.key);
+				writeBytes(out, record.bytes);
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		log.debug("Saved {} classes to cache: {}", records.size(), file);
+	}
+
+	/**
+	 * Describes a supplied class file, safe to call from any thread
+	 */
+	static Input describe(byte[] bytes) {
+		ClassReader reader = new ClassReader(bytes);
+		Input input = new Input();
+		input.name = reader.getClassName();
+		input.hash = digest.get().digest(bytes);
+		input.superName = reader.getSuperName();
+		input.interfaces = reader.getInterfaces();
+		char[] buf = new char[reader.getMaxStringLength()];
+		for (int i = 1; i < reader.getItemCount(); i++) {
+			int offset = reader.getItem(i);
+			if (offset == 0)
+				continue;
+			int tag = reader.readByte(offset - 1);
+			if (tag == 7) {
+				// class
+				input.refs.add(reader.readUTF8(offset, buf));
+			} else if (tag == 1) {
+				// any utf8 may be a descriptor or signature, which name classes as L<name>;
+				int length = reader.readUnsignedShort(offset);
+				addDescriptorRefs(new String(bytes, offset + 2, length, StandardCharsets.UTF_8), input.refs);
+			}
+		}
+		return input;
+	}
+
+	private static void addDescriptorRefs(String s, Set<String> refs) {
+		if (s.indexOf('L') == -1)
+			return;
+		int l = -1;
+		for (int i = 0; i <= s.length(); i++) {
+			char c = i == s.length() ? ';' : s.charAt(i);
+			// none of these can be part of a class name
+			if (";<>.[():".indexOf(c) != -1) {
+				if (l != -1 && l < i - 1)
+					refs.add(s.substring(l + 1, i));
+				l = -1;
+			} else if (c == 'L' && l == -1) {
+				l = i;
+			}
+		}
+	}
+
+	void put(Input input) {
+		inputs.put(input.name, input);
+	}
+
+	/**
+	 * @return whether the same class files were supplied as last time, with the same options
+	 */
+	public boolean isUpToDate() {
+		if (previous.isEmpty() || !previous.keySet().equals(inputs.keySet()))
+			return false;
+		for (Record record : previous.values()) {
+			if (!Arrays.equals(record.input, inputs.get(record.name).hash))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Works out the key of every supplied class, to be called once the transforms are done
+	 *
+	 * @param mappings the renames of this run, in {@link org.objectweb.asm.commons.SimpleRemapper} format
+	 */
+	void prepare(int threads, Map<String, String> mappings) {
+		renames.clear();
+		for (Map.Entry<String, String> entry : mappings.entrySet()) {
+			String key = entry.getKey();
+			int dot = key.indexOf('.');
+			String owner = dot == -1 ? key : key.substring(0, dot);
+			renames.computeIfAbsent(owner, k -> new ArrayList<>()).add(key + '=' + entry.getValue());
+		}
+		for (List<String> list : renames.values())
+			Collections.sort(list);
+		List<String> names = new ArrayList<>(inputs.keySet());
+		byte[][] results = new byte[names.size()][];
+		Parallel.forEach(threads, results.length, i -> results[i] = key(names.get(i)));
+		keys.clear();
+		for (int i = 0; i < results.length; i++)
+			keys.put(names.get(i), results[i]);
+	}
+
+	private byte[] key(String name) {
+		MessageDigest md = digest.get();
+		DigestHelper.update(md, config);
+		DigestHelper.update(md, stringOwner == null ? "" : stringOwner);
+		if (name.equals(stringOwner)) {
+			for (String string : strings)
+				DigestHelper.update(md, string);
+		}
+		for (String dependency : getDependencies(inputs.get(name))) {
+			DigestHelper.update(md, dependency);
+			Input input = inputs.get(dependency);
+			md.update(input == null ? new byte[1] : input.hash);
+			for (String rename : renames.getOrDefault(dependency, Collections.emptyList()))
+				DigestHelper.update(md, rename);
+		}
+		return md.digest();
+	}
+
+	/**
+	 * @return the class itself, every class it references and all of their super types
+	 */
+	private Set<String> getDependencies(Input input) {
+		Set<String> dependencies = new TreeSet<>();
+		Deque<String> stack = new ArrayDeque<>(input.refs);
+		stack.push(input.name);
+		while (!stack.isEmpty()) {
+			String name = stack.pop();
+			if (!dependencies.add(name))
+				continue;
+			Input dependency = inputs.get(name);
+			if (dependency == null)
+				continue;
+			if (dependency.superName != null)
+				stack.push(dependency.superName);
+			for (String iface : dependency.interfaces)
+				stack.push(iface);
+		}
+		return dependencies;
+	}
+
+	/**
+	 * @return the output of the given class from the last run, if its key hasn't changed since, otherwise null
+	 */
+	Record reuse(String name) {
+		Record record = previous.get(name);
+		if (record == null || !Arrays.equals(record.key, keys.get(name)))
+			return null;
+		return record;
+	}
+
+	/**
+	 * Records the output of a class for the next run
+	 */
+	void store(String name, String entryName, byte[] bytes) {
+		Input input = inputs.get(name);
+		if (input == null)
+			return;
+		Record record = new Record();
+		record.name = name;
+		record.entryName = entryName;
+		record.input = input.hash;
+		record.key = keys.get(name);
+		record.bytes = bytes;
+		records.put(name, record);
+	}
+
+	/**
+	 * @return the mappings of the last run
+	 */
+	public Map<String, String> getMappings() {
+		return Collections.unmodifiableMap(mappings);
+	}
+
+	/**
+	 * @return the string pool of the last run, or of this run once it has been set
+	 */
+	public List<String> getStrings() {
+		return strings;
+	}
+
+	public void setStrings(List<String> strings) {
+		this.strings = strings;
+	}
+
+	/**
+	 * @return the class holding the string pool
+	 */
+	public String getStringOwner() {
+		return stringOwner;
+	}
+
+	public void setStringOwner(String stringOwner) {
+		this.stringOwner = stringOwner;
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return new String(readBytes(in), StandardCharsets.UTF_8);
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * What a supplied class file is made of, as far as the cache is concerned
+	 */
+	static class Input {
+
+		private String name;
+		private byte[] hash;
+		private String superName;
+		private String[] interfaces;
+		private final Set<String> refs = new HashSet<>();
+
+		String getName() {
+			return name;
+		}
+
+	}
+
+	static class Record {
+
+		private String name;
+		private String entryName;
+		private byte[] input;
+		private byte[] key;
+		private byte[] bytes;
+
+		String getEntryName() {
+			return entryName;
+		}
+
+		byte[] getBytes() {
+			return bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Every method call in the program, indexed by the method it refers to (owner, name and descriptor as written at
+ * the call site), so that the calls to a method can be found without scanning every instruction again.
+ * <p>
+ * The index is built in a single scan. Calls that are rewritten have to be {@link #remove(String, String, String)
+ * removed} from it, and new calls {@link #add(ClassNode, MethodNode, MethodInsnNode) added}, for it to stay
+ * correct.
+ */
+public class CallSites {
+
+	private final Map<String, Map<String, List<Site>>> sites = new HashMap<>();
+
+	public CallSites(Map<String, ClassNode> classMap) {
+		for (ClassNode cn : classMap.values()) {
+			for (MethodNode mn : cn.methods) {
+				for (AbstractInsnNode insn = mn.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+					if (insn.getType() == AbstractInsnNode.METHOD_INSN)
+						add(cn, mn, (MethodInsnNode) insn);
+				}
+			}
+		}
+	}
+
+	public void add(ClassNode cn, MethodNode mn, MethodInsnNode insn) {
+		sites.computeIfAbsent(insn.owner, k -> new HashMap<>()).computeIfAbsent(insn.name + insn.desc, k -> new ArrayList<>())
+		     .add(new Site(cn, mn, insn));
+	}
+
+	/**
+	 * @return the calls to the given method
+	 */
+	public List<Site> get(String owner, String name, String desc) {
+		Map<String, List<Site>> methods = sites.get(owner);
+		List<Site> list = methods == null ? null : methods.get(name + desc);
+		return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * Removes the calls to the given method from the index
+	 *
+	 * @return the calls that were removed
+	 */
+	public List<Site> remove(String owner, String name, String desc) {
+		Map<String, List<Site>> methods = sites.get(owner);
+		List<Site> list = methods == null ? null : methods.remove(name + desc);
+		return list == null ? Collections.emptyList() : list;
+	}
+
+	/**
+	 * A call, and the method and class it is made from
+	 */
+	public static class Site {
+
+		private final ClassNode owner;
+		private final MethodNode method;
+		private final MethodInsnNode insn;
+
+		Site(ClassNode owner, MethodNode method, MethodInsnNode insn) {
+			this.owner = owner;
+			this.method = method;
+			this.insn = insn;
+		}
+
+		public ClassNode getOwner() {
+			return owner;
+		}
+
+		public MethodNode getMethod() {
+			return method;
+		}
+
+		public MethodInsnNode getInsn() {
+			return insn;
+		}
+
+	}
+
+}
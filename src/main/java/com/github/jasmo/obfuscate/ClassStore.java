@@ -0,0 +1,516 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import com.github.jasmo.util.Archive;
+import com.github.jasmo.util.Parallel;
+import org.objectweb.asm.*;
+import org.objectweb.asm.tree.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Holds the classes being obfuscated.
+ * <p>
+ * By default every class is kept as a complete {@link ClassNode}. A lazy store keeps each class as its class file
+ * bytes instead, and only parses it as far as the current {@link Transformer} asks for (see
+ * {@link Transformer.Level}). Once the transform is done the classes are written back to bytes, so method bodies
+ * are only on the heap during the passes that need them.
+ * <p>
+ * {@link ClassTransformer}s don't need a parsed class at all, a lazy store streams its bytes straight through them.
+ * <p>
+ * Every transformer is handed the same map of classes. It records which classes a transformer puts or removes, and
+ * which ones it got out of the map, and only those are looked at again once the transform is done (see
+ * {@link Transformer}). A class that was got out of the map may have been changed in place: a lazy store finds out
+ * by comparing its class file, otherwise it is taken to have changed.
+ */
+public class ClassStore {
+
+	private final Obfuscator obfuscator;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final ClassMap classMap = new ClassMap();
+	/**
+	 * whether every class is parsed completely in {@link #classMap}, which stays so unless the store is lazy
+	 */
+	private boolean complete = true;
+	/**
+	 * number of completed passes, a pass being a transform or a run of class transformers
+	 */
+	private int pass;
+
+	ClassStore(Obfuscator obfuscator) {
+		this.obfuscator = obfuscator;
+	}
+
+	void put(ClassNode node) {
+		Entry entry = new Entry(node.name, pass);
+		entry.node = node;
+		entry.level = Transformer.Level.CODE;
+		entries.put(entry.name, entry);
+		classMap.classes.put(entry.name, node);
+	}
+
+	/**
+	 * @param source the archive entry the class was read from, if it may be copied from there when unchanged
+	 */
+	void put(byte[] bytes, Archive.Entry source) {
+		Entry entry = new Entry(new ClassReader(bytes).getClassName(), pass);
+		entry.bytes = bytes;
+		entry.original = bytes;
+		entry.source = source;
+		entries.put(entry.name, entry);
+		classMap.classes.remove(entry.name);
+		complete = false;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public Set<String> names() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	/**
+	 * @return the number of passes completed so far
+	 */
+	public int getPass() {
+		return pass;
+	}
+
+	/**
+	 * A lazy store compares the class files, so only classes that actually changed are included. Otherwise it goes
+	 * by the classes each transformer put into or got out of its map, and every class for a run of class
+	 * transformers.
+	 *
+	 * @return the names of the classes that were added or changed after the given pass (see {@link #getPass()})
+	 */
+	public Set<String> dirtySince(int pass) {
+		Set<String> names = new HashSet<>();
+		for (Entry entry : entries.values()) {
+			if (entry.modified > pass)
+				names.add(entry.name);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the class declaration with its fields and methods but no method bodies, as it was after the last
+	 * completed pass, or null if there is no such class
+	 */
+	public ClassNode getHeader(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null)
+			return null;
+		if (entry.node != null && entry.level != Transformer.Level.HEADER)
+			return entry.node;
+		if (entry.header == null && entry.bytes != null) {
+			ClassNode header = new ClassNode();
+			new ClassReader(entry.bytes).accept(header, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			entry.header = header;
+		}
+		return entry.header;
+	}
+
+	/**
+	 * @return the archive entry the given class was read from, if the class hasn't changed since, otherwise null
+	 */
+	public Archive.Entry getSource(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null || entry.node != null || entry.bytes != entry.original)
+			return null;
+		return entry.source;
+	}
+
+	/**
+	 * @return the class file for the given class
+	 */
+	public byte[] toByteArray(String name) {
+		Entry entry = entries.get(name);
+		if (entry == null)
+			return null;
+		if (entry.node == null)
+			return entry.bytes;
+		return write(entry);
+	}
+
+	/**
+	 * @param adapter wraps the class writer in the visitors the class should be streamed through on its way out
+	 * @return the class file for the given class, as transformed by the adapter
+	 */
+	public byte[] toByteArray(String name, UnaryOperator<ClassVisitor> adapter) {
+		Entry entry = entries.get(name);
+		if (entry == null)
+			return null;
+		return write(entry, adapter);
+	}
+
+	/**
+	 * Streams every class through the visitors the adapter wraps around it, replacing it with the result
+	 */
+	void transform(UnaryOperator<ClassVisitor> adapter) {
+		pass++;
+		List<Entry> list = new ArrayList<>(entries.values());
+		Parallel.forEach(obfuscator.getThreads(), list.size(), i -> transform(list.get(i), adapter));
+		// the visitors may have renamed some classes, only those are re-keyed
+		List<Entry> renamed = new ArrayList<>();
+		for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Entry> e = it.next();
+			if (!e.getKey().equals(e.getValue().name)) {
+				renamed.add(e.getValue());
+				it.remove();
+			}
+		}
+		for (Entry entry : renamed)
+			entries.put(entry.name, entry);
+		// the visitors replace every parsed class
+		classMap.classes.clear();
+		for (Entry entry : list) {
+			if (entry.node != null)
+				classMap.classes.put(entry.name, entry.node);
+		}
+	}
+
+	/**
+	 * Parses every class to at least the given level. Unless the store is lazy that is only done once, after which
+	 * the same map is handed out again without looking at the classes.
+	 *
+	 * @return the map of class name to class, to be handed to a transformer
+	 */
+	Map<String, ClassNode> open(Transformer.Level level) {
+		if (!complete) {
+			List<Entry> list = new ArrayList<>(entries.values());
+			Parallel.forEach(obfuscator.getThreads(), list.size(), i -> open(list.get(i), level));
+			classMap.classes.clear();
+			for (Entry entry : list)
+				classMap.classes.put(entry.name, entry.node);
+			complete = !obfuscator.isLazy() && level == Transformer.Level.CODE;
+		}
+		classMap.touched.clear();
+		classMap.fetched.clear();
+		return classMap;
+	}
+
+	/**
+	 * @return the classes of the map returned by {@link #open(Transformer.Level)}, read without being recorded as
+	 * fetched
+	 */
+	Map<String, ClassNode> classes() {
+		return Collections.unmodifiableMap(classMap.classes);
+	}
+
+	/**
+	 * Takes back the map returned by {@link #open(Transformer.Level)} after it has been transformed. Only the classes
+	 * the transformer put, removed or got out of the map are looked at. Those it put or removed, or renamed, are
+	 * marked as modified and re-keyed under their new name. Those it only got out of the map are marked as modified
+	 * too, unless the store is lazy: it then writes every class back to bytes, which tells whether they changed.
+	 */
+	void close(Map<String, ClassNode> map) {
+		if (map != classMap)
+			throw new IllegalArgumentException("Not a map opened by this store");
+		pass++;
+		for (String key : classMap.fetched) {
+			ClassNode node = classMap.classes.get(key);
+			if (node == null || classMap.touched.contains(key))
+				continue;
+			if (!key.equals(node.name)) {
+				classMap.touched.add(key);
+			} else if (!obfuscator.isLazy()) {
+				Entry entry = entries.get(key);
+				entry.modified = pass;
+				entry.header = null;
+			}
+		}
+		classMap.fetched.clear();
+		if (!classMap.touched.isEmpty()) {
+			// take out everything that was touched, then put it back by name, so that renames can't collide
+			Map<ClassNode, Entry> previous = new IdentityHashMap<>();
+			Map<ClassNode, Entry> replaced = new IdentityHashMap<>();
+			List<ClassNode> nodes = new ArrayList<>();
+			for (String key : classMap.touched) {
+				Entry entry = entries.remove(key);
+				ClassNode node = classMap.classes.remove(key);
+				if (entry != null && entry.node != null)
+					previous.put(entry.node, entry);
+				if (node != null) {
+					nodes.add(node);
+					if (entry != null)
+						replaced.put(node, entry);
+				}
+			}
+			for (ClassNode node : nodes) {
+				Entry entry = previous.remove(node);
+				if (entry == null) {
+					// a new node, which takes the place of the one under the same key if that one moved nowhere else
+					entry = replaced.get(node);
+					if (entry != null && previous.remove(entry.node) == null)
+						entry = null;
+					if (entry == null)
+						entry = new Entry(node.name, pass);
+					entry.node = node;
+					entry.level = Transformer.Level.CODE;
+					entry.origins = null;
+				}
+				entry.name = node.name;
+				entry.modified = pass;
+				entry.header = null;
+				entries.put(entry.name, entry);
+				classMap.classes.put(entry.name, node);
+			}
+			classMap.touched.clear();
+		}
+		if (obfuscator.isLazy()) {
+			List<Entry> list = new ArrayList<>(entries.values());
+			Parallel.forEach(obfuscator.getThreads(), list.size(), i -> release(list.get(i)));
+			classMap.classes.clear();
+			complete = false;
+		}
+	}
+
+	private void open(Entry entry, Transformer.Level level) {
+		if (entry.node != null) {
+			if (entry.level.compareTo(level) >= 0)
+				return;
+			release(entry);
+		}
+		ClassNode node = new ClassNode();
+		ClassReader reader = new ClassReader(entry.bytes);
+		if (level == Transformer.Level.HEADER) {
+			reader.accept(new ClassVisitor(Opcodes.ASM9, node) {
+				@Override
+				public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+					return null;
+				}
+
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+					return null;
+				}
+			}, ClassReader.SKIP_CODE);
+		} else if (level == Transformer.Level.MEMBERS) {
+			reader.accept(node, ClassReader.SKIP_CODE);
+			// remember which method each declaration came from, so that its body can be put back
+			entry.origins = new IdentityHashMap<>();
+			for (int i = 0; i < node.methods.size(); i++)
+				entry.origins.put(node.methods.get(i), i);
+		} else {
+			reader.accept(node, obfuscator.getReadFlags());
+		}
+		entry.node = node;
+		entry.level = level;
+	}
+
+	private void release(Entry entry) {
+		if (entry.node == null)
+			return;
+		update(entry, write(entry));
+		entry.header = null;
+	}
+
+	/**
+	 * Replaces the entry's parsed class with the given class file, marking it as modified if that differs
+	 */
+	private void update(Entry entry, byte[] bytes) {
+		if (entry.bytes == null || !Arrays.equals(bytes, entry.bytes)) {
+			entry.bytes = bytes;
+			entry.modified = pass;
+		}
+		if (entry.original != null && Arrays.equals(entry.bytes, entry.original))
+			entry.bytes = entry.original;
+		entry.node = null;
+		entry.level = null;
+		entry.origins = null;
+	}
+
+	private void transform(Entry entry, UnaryOperator<ClassVisitor> adapter) {
+		if (entry.node != null && entry.level == Transformer.Level.CODE) {
+			ClassNode node = new ClassNode();
+			entry.node.accept(adapter.apply(node));
+			entry.node = node;
+			entry.name = node.name;
+			entry.modified = pass;
+		} else {
+			update(entry, write(entry, adapter));
+			entry.name = new ClassReader(entry.bytes).getClassName();
+		}
+		entry.header = null;
+	}
+
+	private byte[] write(Entry entry) {
+		return write(entry, UnaryOperator.identity());
+	}
+
+	private byte[] write(Entry entry, UnaryOperator<ClassVisitor> adapter) {
+		ClassWriter writer = new ClassWriter(obfuscator.getWriteFlags());
+		if (entry.node == null) {
+			new ClassReader(entry.bytes).accept(adapter.apply(writer), obfuscator.getReadFlags());
+			return writer.toByteArray();
+		}
+		ClassNode node = entry.node;
+		if (entry.level != Transformer.Level.CODE) {
+			node = merge(entry);
+		}
+		node.accept(adapter.apply(writer));
+		return writer.toByteArray();
+	}
+
+	/**
+	 * @return the partially parsed class of the entry, with the parts that weren't parsed copied from its bytes
+	 */
+	private ClassNode merge(Entry entry) {
+		ClassNode full = new ClassNode();
+		new ClassReader(entry.bytes).accept(full, obfuscator.getReadFlags());
+		ClassNode node = entry.node;
+		ClassNode merged = new ClassNode();
+		node.accept(merged);
+		if (entry.level == Transformer.Level.HEADER) {
+			merged.fields = full.fields;
+			merged.methods = full.methods;
+			return merged;
+		}
+		for (int i = 0; i < node.methods.size(); i++) {
+			Integer origin = entry.origins.get(node.methods.get(i));
+			if (origin == null)
+				continue;
+			MethodNode code = full.methods.get(origin);
+			MethodNode method = merged.methods.get(i);
+			method.instructions = code.instructions;
+			method.tryCatchBlocks = code.tryCatchBlocks;
+			method.localVariables = code.localVariables;
+			method.visibleLocalVariableAnnotations = code.visibleLocalVariableAnnotations;
+			method.invisibleLocalVariableAnnotations = code.invisibleLocalVariableAnnotations;
+			method.maxStack = code.maxStack;
+			method.maxLocals = code.maxLocals;
+		}
+		return merged;
+	}
+
+	private static class Entry {
+
+		private String name;
+		/**
+		 * the class file, out of date while {@link #node} is set
+		 */
+		private byte[] bytes;
+		/**
+		 * the class file as it was supplied
+		 */
+		private byte[] original;
+		private Archive.Entry source;
+		private ClassNode node;
+		private Transformer.Level level;
+		private Map<MethodNode, Integer> origins;
+		private ClassNode header;
+		/**
+		 * the pass that last changed the class
+		 */
+		private int modified;
+
+		Entry(String name, int modified) {
+			this.name = name;
+			this.modified = modified;
+		}
+
+	}
+
+	/**
+	 * A map of classes that records the names of the classes put into or removed from it, and of the classes got out
+	 * of it, which may have been changed in place
+	 */
+	private static class ClassMap extends AbstractMap<String, ClassNode> {
+
+		private final Map<String, ClassNode> classes = new HashMap<>();
+		private final Set<String> touched = new HashSet<>();
+		/**
+		 * transformers may look classes up from several threads
+		 */
+		private final Set<String> fetched = ConcurrentHashMap.newKeySet();
+
+		@Override
+		public int size() {
+			return classes.size();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return classes.containsKey(key);
+		}
+
+		@Override
+		public ClassNode get(Object key) {
+			ClassNode node = classes.get(key);
+			if (node != null)
+				fetched.add((String) key);
+			return node;
+		}
+
+		@Override
+		public ClassNode put(String key, ClassNode value) {
+			touched.add(key);
+			return classes.put(key, value);
+		}
+
+		@Override
+		public ClassNode remove(Object key) {
+			if (!classes.containsKey(key))
+				return null;
+			touched.add((String) key);
+			return classes.remove(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, ClassNode>> entrySet() {
+			return new AbstractSet<Map.Entry<String, ClassNode>>() {
+				@Override
+				public Iterator<Map.Entry<String, ClassNode>> iterator() {
+					Iterator<Map.Entry<String, ClassNode>> it = classes.entrySet().iterator();
+					return new Iterator<Map.Entry<String, ClassNode>>() {
+						private Map.Entry<String, ClassNode> last;
+
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Map.Entry<String, ClassNode> next() {
+							Map.Entry<String, ClassNode> e = it.next();
+							last = e;
+							fetched.add(e.getKey());
+							return new SimpleEntry<String, ClassNode>(e) {
+								@Override
+								public ClassNode setValue(ClassNode value) {
+									touched.add(e.getKey());
+									super.setValue(value);
+									return e.setValue(value);
+								}
+							};
+						}
+
+						@Override
+						public void remove() {
+							it.remove();
+							touched.add(last.getKey());
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return classes.size();
+				}
+			};
+		}
+
+	}
+
+}
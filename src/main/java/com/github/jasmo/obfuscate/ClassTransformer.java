@@ -0,0 +1,27 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import org.objectweb.asm.ClassVisitor;
+
+/**
+ * @author Caleb Whiting
+ *
+ * A transform that only ever looks at one class at a time. Unlike a {@link Transformer}, it doesn't walk the class
+ * map itself; {@link Obfuscator} chains every class transformer applied in a row and streams each class through
+ * them once, preferably while it is being written.
+ */
+public interface ClassTransformer {
+
+	/**
+	 * @param next the visitor the transformed class should be passed on to
+	 * @return a visitor that transforms the class it visits
+	 */
+	ClassVisitor transform(ClassVisitor next);
+
+}
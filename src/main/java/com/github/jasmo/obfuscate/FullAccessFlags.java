@@ -9,25 +9,36 @@ package com.github.jasmo.obfuscate;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.tree.ClassNode;
-
-import java.util.Map;
 
 /**
  * Some transforms require all fields to be public, in order to remove accessors or move package etc
  */
-public class FullAccessFlags implements Transformer {
+public class FullAccessFlags implements ClassTransformer {
 
 	private static final Logger log = LogManager.getLogger("FullAccessFlags");
 
 	@Override
-	public void transform(Map<String, ClassNode> classMap) {
-		classMap.values().forEach(c -> {
-			c.access = access(c.access);
-			c.methods.forEach(m -> m.access = access(m.access));
-			c.fields.forEach(m -> m.access = access(m.access));
-		});
+	public ClassVisitor transform(ClassVisitor next) {
+		return new ClassVisitor(Opcodes.ASM9, next) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				super.visit(version, access(access), name, signature, superName, interfaces);
+			}
+
+			@Override
+			public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+				return super.visitField(access(access), name, desc, signature, value);
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				return super.visitMethod(access(access), name, desc, signature, exceptions);
+			}
+		};
 	}
 
 	private int access(int access) {
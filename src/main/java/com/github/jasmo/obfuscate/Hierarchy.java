@@ -0,0 +1,178 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import com.github.jasmo.util.ClassPath;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * The class hierarchy of the program, with edges from every class to its super class and interfaces and back.
+ * Super types that aren't part of the program are resolved from the {@link ClassPath}.
+ * <p>
+ * {@link Obfuscator} keeps the hierarchy {@link #update(Map) up to date} before every transform, which only
+ * re-links the classes that were added, removed, renamed or given new super types since. Transitive queries take
+ * time in proportion to the number of classes they return.
+ */
+public class Hierarchy {
+
+	private final Map<String, Node> classes = new HashMap<>();
+	/**
+	 * class name to the classes that extend it
+	 */
+	private final Map<String, Set<String>> subclasses = new HashMap<>();
+	/**
+	 * interface name to the classes and interfaces that implement or extend it
+	 */
+	private final Map<String, Set<String>> implementors = new HashMap<>();
+
+	/**
+	 * Brings the hierarchy in line with the given classes
+	 */
+	public void update(Map<String, ClassNode> classMap) {
+		Map<String, Node> removed = new HashMap<>(classes);
+		List<Node> added = new ArrayList<>();
+		for (ClassNode c : classMap.values()) {
+			Node old = removed.remove(c.name);
+			if (old != null && Objects.equals(old.superName, c.superName) && old.interfaces.equals(c.interfaces)) {
+				old.node = c;
+				continue;
+			}
+			if (old != null)
+				unlink(old);
+			added.add(new Node(c));
+		}
+		for (Node node : removed.values()) {
+			unlink(node);
+			classes.remove(node.name);
+		}
+		for (Node node : added) {
+			classes.put(node.name, node);
+			if (node.superName != null)
+				subclasses.computeIfAbsent(node.superName, k -> new LinkedHashSet<>()).add(node.name);
+			for (String iface : node.interfaces)
+				implementors.computeIfAbsent(iface, k -> new LinkedHashSet<>()).add(node.name);
+		}
+	}
+
+	private void unlink(Node node) {
+		remove(subclasses, node.superName, node.name);
+		for (String iface : node.interfaces)
+			remove(implementors, iface, node.name);
+	}
+
+	private static void remove(Map<String, Set<String>> edges, String key, String name) {
+		if (key == null)
+			return;
+		Set<String> names = edges.get(key);
+		if (names != null && names.remove(name) && names.isEmpty())
+			edges.remove(key);
+	}
+
+	/**
+	 * @return the given program class, or the library class if it isn't part of the program, or null
+	 */
+	public ClassNode getClass(String name) {
+		if (name == null)
+			return null;
+		Node node = classes.get(name);
+		return node != null ? node.node : ClassPath.getInstance().get(name);
+	}
+
+	/**
+	 * @return whether the class is part of the program
+	 */
+	public boolean isProgramClass(String name) {
+		return classes.containsKey(name);
+	}
+
+	/**
+	 * @return the given class and every class that extends it, directly or not
+	 */
+	public Set<String> getSubclasses(String name) {
+		return walk(name, false);
+	}
+
+	/**
+	 * @return the given class and every class that extends or implements it, directly or not
+	 */
+	public Set<String> getSubtypes(String name) {
+		return walk(name, true);
+	}
+
+	private Set<String> walk(String name, boolean interfaces) {
+		Set<String> result = new LinkedHashSet<>();
+		Deque<String> stack = new ArrayDeque<>();
+		stack.push(name);
+		while (!stack.isEmpty()) {
+			String next = stack.pop();
+			if (!result.add(next))
+				continue;
+			stack.addAll(subclasses.getOrDefault(next, Collections.emptySet()));
+			if (interfaces)
+				stack.addAll(implementors.getOrDefault(next, Collections.emptySet()));
+		}
+		return result;
+	}
+
+	/**
+	 * @return every super class and interface of the given class, directly or not, that could be resolved
+	 */
+	public List<ClassNode> getSupertypes(String name) {
+		List<ClassNode> result = new ArrayList<>();
+		Set<String> seen = new HashSet<>();
+		Deque<String> stack = new ArrayDeque<>();
+		ClassNode c = getClass(name);
+		if (c == null)
+			return result;
+		seen.add(name);
+		push(c, stack);
+		while (!stack.isEmpty()) {
+			String next = stack.pop();
+			if (!seen.add(next))
+				continue;
+			ClassNode node = getClass(next);
+			if (node == null)
+				continue;
+			result.add(node);
+			push(node, stack);
+		}
+		return result;
+	}
+
+	private static void push(ClassNode c, Deque<String> stack) {
+		if (c.superName != null)
+			stack.push(c.superName);
+		for (String iface : c.interfaces)
+			stack.push(iface);
+	}
+
+	/**
+	 * A program class, along with its edges as they were when it was linked, since transformers may change the
+	 * class itself
+	 */
+	private static class Node {
+
+		private final String name;
+		private final String superName;
+		private final List<String> interfaces;
+		private ClassNode node;
+
+		Node(ClassNode node) {
+			this.name = node.name;
+			this.superName = node.superName;
+			this.interfaces = new ArrayList<>(node.interfaces);
+			this.node = node;
+		}
+
+	}
+
+}
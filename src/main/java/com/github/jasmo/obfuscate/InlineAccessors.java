@@ -7,10 +7,12 @@
 
 package com.github.jasmo.obfuscate;
 
+import com.github.jasmo.query.Automaton;
+import com.github.jasmo.query.Match;
+import com.github.jasmo.query.Pattern;
 import com.github.jasmo.query.Query;
 import com.github.jasmo.query.QueryUtil;
 import com.github.jasmo.util.BytecodeHelper;
-import com.github.jasmo.util.ClassPath;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.*;
@@ -27,24 +29,55 @@ public class InlineAccessors implements Transformer {
 
 	private static final Logger log = LogManager.getLogger("InlineAccessors");
 
-	private Map<String, ClassNode> classMap;
+	private final Hierarchy shared;
+	private Hierarchy hierarchy;
+	private CallSites calls;
+
+	public InlineAccessors() {
+		this(null);
+	}
+
+	/**
+	 * @param hierarchy the hierarchy of the classes to be transformed, or null to work it out on every transform
+	 */
+	public InlineAccessors(Hierarchy hierarchy) {
+		this.shared = hierarchy;
+	}
 
 	@Override
 	public void transform(Map<String, ClassNode> classMap) {
-		this.classMap = classMap;
+		this.hierarchy = shared;
+		if (hierarchy == null) {
+			hierarchy = new Hierarchy();
+			hierarchy.update(classMap);
+		}
+		this.calls = new CallSites(classMap);
 		for (ClassNode node : new ArrayList<>(classMap.values())) {
-			for (FieldNode field : node.fields) {
-				for (MethodNode method : new ArrayList<>(node.methods)) {
-					if (isGetterFor(node, field, method)) {
-						node.methods.remove(method);
-						log.debug("Inlining getter {}.{}{}", node.name, method.name, method.desc);
-						replace(Opcodes.GETFIELD, node, field, method);
-					}
-					if (isSetterFor(node, field, method)) {
-						node.methods.remove(method);
-						log.debug("Inlining setter {}.{}{}", node.name, method.name, method.desc);
-						replace(Opcodes.PUTFIELD, node, field, method);
-					}
+			if (node.fields.isEmpty())
+				continue;
+			// the getter of every field then its setter, all matched in a single pass over each method
+			FieldNode[] fields = node.fields.toArray(new FieldNode[node.fields.size()]);
+			Pattern[] patterns = new Pattern[fields.length * 2];
+			for (int i = 0; i < fields.length; i++) {
+				patterns[i * 2] = getPattern(true, node, fields[i]);
+				patterns[i * 2 + 1] = getPattern(false, node, fields[i]);
+			}
+			Automaton accessors = Automaton.compile(patterns);
+			for (MethodNode method : new ArrayList<>(node.methods)) {
+				Match match = accessors.matches(method.instructions);
+				if (match == null)
+					continue;
+				FieldNode field = fields[match.getPattern() / 2];
+				boolean get = match.getPattern() % 2 == 0;
+				if (get && isGetterFor(node, field, method)) {
+					node.methods.remove(method);
+					log.debug("Inlining getter {}.{}{}", node.name, method.name, method.desc);
+					replace(Opcodes.GETFIELD, node, field, method);
+				}
+				if (!get && isSetterFor(node, field, method)) {
+					node.methods.remove(method);
+					log.debug("Inlining setter {}.{}{}", node.name, method.name, method.desc);
+					replace(Opcodes.PUTFIELD, node, field, method);
 				}
 			}
 		}
@@ -53,49 +86,25 @@ public class InlineAccessors implements Transformer {
 	private void replace(int opcode, ClassNode owner, FieldNode field, MethodNode m) {
 		if (Modifier.isStatic(field.access))
 			opcode -= 2;
-		for (ClassNode cn : classMap.values()) {
-			for (MethodNode mn : cn.methods) {
-				AbstractInsnNode[] instructions = mn.instructions.toArray();
-				for (AbstractInsnNode node : instructions) {
-					if (node.getType() != AbstractInsnNode.METHOD_INSN) {
-						continue;
-					}
-					MethodInsnNode min = (MethodInsnNode) node;
-					List<String> owners = getChildNames(owner);
-					if (owners.contains(min.owner) && min.name.equals(m.name) && min.desc.equals(m.desc)) {
-						FieldInsnNode fin = new FieldInsnNode(opcode, min.owner, field.name, field.desc);
-						log.debug(" replace {}.{}.{}, insn: {}",
-								cn.name, mn.name, mn.desc, QueryUtil.query(fin, "index"));
-						mn.instructions.set(min, fin);
-					}
-				}
+		// calls may name the method through any subclass of its owner
+		for (String name : hierarchy.getSubclasses(owner.name)) {
+			// once replaced they aren't calls anymore, so they leave the index
+			for (CallSites.Site site : calls.remove(name, m.name, m.desc)) {
+				MethodInsnNode min = site.getInsn();
+				FieldInsnNode fin = new FieldInsnNode(opcode, min.owner, field.name, field.desc);
+				log.debug(" replace {}.{}.{}, insn: {}",
+						site.getOwner().name, site.getMethod().name, site.getMethod().desc, QueryUtil.query(fin, "index"));
+				site.getMethod().instructions.set(min, fin);
 			}
 		}
 	}
 
-	private List<String> getChildNames(ClassNode owner) {
-		List<String> owners = new ArrayList<>();
-		Stack<ClassNode> stack = new Stack<>();
-		stack.add(owner);
-		while (stack.size() > 0) {
-			ClassNode c = stack.pop();
-			owners.add(c.name);
-			classMap.values().stream().filter(check ->
-					check.superName.equals(c.name)).forEach(stack:: push);
-		}
-		return owners;
-	}
-
 	private boolean isGetterFor(ClassNode owner, FieldNode field, MethodNode method) {
 		if (local(method.access) == local(field.access) && isTopLevel(owner, method)) {
 			Type type = Type.getType(field.desc);
 			Type getType = Type.getMethodType(type);
 			Type methodType = Type.getMethodType(method.desc);
-			if (methodType.equals(getType)) {
-				List<AbstractInsnNode> instructions = getRealInstructions(method);
-				Query[] queries = getPattern(true, owner, field);
-				return matches(instructions, queries);
-			}
+			return methodType.equals(getType);
 		}
 		return false;
 	}
@@ -105,16 +114,12 @@ public class InlineAccessors implements Transformer {
 			Type type = Type.getType(field.desc);
 			Type setType = Type.getMethodType(Type.VOID_TYPE, type);
 			Type methodType = Type.getMethodType(method.desc);
-			if (methodType.equals(setType)) {
-				List<AbstractInsnNode> instructions = getRealInstructions(method);
-				Query[] queries = getPattern(false, owner, field);
-				return matches(instructions, queries);
-			}
+			return methodType.equals(setType);
 		}
 		return false;
 	}
 
-	private Query[] getPattern(boolean get, ClassNode owner, FieldNode field) {
+	private Pattern getPattern(boolean get, ClassNode owner, FieldNode field) {
 		Type type = Type.getType(field.desc);
 		List<Query> queries = new LinkedList<>();
 		boolean local = local(field.access);
@@ -130,59 +135,17 @@ public class InlineAccessors implements Transformer {
 			queries.add(new Query("opcode", opcode, "owner", owner.name, "name", field.name, "desc", field.desc));
 			queries.add(new Query("opcode", Opcodes.RETURN));
 		}
-		return queries.toArray(new Query[queries.size()]);
-	}
-
-	private boolean matches(List<AbstractInsnNode> list, Query... queries) {
-		if (list.size() != queries.length) return false;
-		for (int i = 0; i < list.size(); i++) {
-			AbstractInsnNode node = list.get(i);
-			if (!QueryUtil.check(node, queries[i].values())) {
-				return false;
-			}
-		}
-		return true;
+		return Pattern.seq(queries.toArray());
 	}
 
 	private boolean isTopLevel(ClassNode owner, MethodNode method) {
-		Stack<ClassNode> stack = new Stack<>();
-		stack.add(owner);
-		while (stack.size() > 0) {
-			ClassNode node = stack.pop();
-			if (node != owner && BytecodeHelper.getMethod(node, method.name, method.desc) != null)
+		for (ClassNode node : hierarchy.getSupertypes(owner.name)) {
+			if (BytecodeHelper.getMethod(node, method.name, method.desc) != null)
 				return false;
-			ClassNode superClass = getClass(node.superName);
-			if (superClass != null)
-				stack.push(superClass);
-			if (node.interfaces != null) {
-				node.interfaces.forEach(iface -> {
-					ClassNode interfaceClass = getClass(iface);
-					if (interfaceClass != null)
-						stack.push(interfaceClass);
-				});
-			}
 		}
 		return true;
 	}
 
-	private ClassNode getClass(String name) {
-		if (name == null)
-			return null;
-		ClassNode c = classMap.get(name);
-		if (c != null)
-			return c;
-		return ClassPath.getInstance().get(name);
-	}
-
-	private List<AbstractInsnNode> getRealInstructions(MethodNode method) {
-		List<AbstractInsnNode> instructions = new LinkedList<>();
-		for (AbstractInsnNode node : method.instructions.toArray()) {
-			if (node.getOpcode() != -1)
-				instructions.add(node);
-		}
-		return instructions;
-	}
-
 	private boolean local(int access) {
 		return (access & Opcodes.ACC_STATIC) == 0;
 	}
@@ -0,0 +1,293 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import com.github.jasmo.util.BytecodeHelper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Renames shared by the rename transformers. Classes are keyed by name, fields by owner and name, and methods by
+ * owner and the id of their signature in the {@link SymbolTable} the mappings were made with, so recording and
+ * looking up a rename doesn't build any strings. {@link #asMap()} gives them in {@link SimpleRemapper} format:
+ * <pre>
+ * class  = [ "&lt;name&gt;"                : "&lt;newname&gt;" ]
+ * field  = [ "&lt;owner&gt;.&lt;name&gt;"        : "&lt;newname&gt;" ]
+ * method = [ "&lt;owner&gt;.&lt;name&gt;&lt;desc&gt;"  : "&lt;newname&gt;" ]
+ * </pre>
+ * Keys always use the names the classes were supplied with. Nothing is renamed until the output is written, when
+ * {@link Obfuscator} streams every class through a single remapper, so every transformer until then sees the
+ * original names.
+ * <p>
+ * Mappings from an earlier run can be {@link #restore(Map) restored}, for the renamers to give unchanged classes
+ * and members the same names again, and to keep new ones from taking those names.
+ */
+public class Mappings {
+
+	private static final Logger log = LogManager.getLogger("Mappings");
+
+	private final SymbolTable symbols;
+	private final Names current = new Names();
+	private final Names previous = new Names();
+	/**
+	 * method renames by owner, the signatures in ascending order
+	 */
+	private final Map<String, Methods> methods = new HashMap<>();
+	private final Set<String> reserved = new HashSet<>();
+
+	public Mappings() {
+		this(new SymbolTable());
+	}
+
+	/**
+	 * @param symbols the table that gives the signatures of renamed methods their ids
+	 */
+	public Mappings(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	/**
+	 * @param key a class, field or method in {@link SimpleRemapper} format
+	 */
+	public void put(String key, String value) {
+		int dot = key.indexOf('.');
+		int paren = key.indexOf('(', dot + 1);
+		if (dot == -1) {
+			current.types.put(key, value);
+		} else if (paren == -1) {
+			putField(key.substring(0, dot), key.substring(dot + 1), value);
+		} else {
+			int signature = symbols.getSignature(key.substring(dot + 1, paren), key.substring(paren));
+			if (signature == -1)
+				throw new IllegalArgumentException("Unknown method signature: " + key);
+			putMethods(key.substring(0, dot), new int[]{signature}, new String[]{value});
+		}
+	}
+
+	public void putAll(Map<String, String> mappings) {
+		BytecodeHelper.logMappings(mappings);
+		for (Map.Entry<String, String> entry : mappings.entrySet())
+			put(entry.getKey(), entry.getValue());
+	}
+
+	public void putType(String name, String newName) {
+		current.types.put(name, newName);
+	}
+
+	public void putField(String owner, String name, String newName) {
+		current.fields.computeIfAbsent(owner, k -> new HashMap<>()).put(name, newName);
+	}
+
+	/**
+	 * Renames methods of the given class, merging them with the ones it already has
+	 *
+	 * @param signatures the {@link SymbolTable#getSignature(String, String) signatures} of the methods, in
+	 *                   ascending order
+	 * @param names      the new name of each
+	 */
+	public void putMethods(String owner, int[] signatures, String[] names) {
+		if (signatures.length == 0)
+			return;
+		Methods old = methods.get(owner);
+		methods.put(owner, old == null ? new Methods(signatures, names) : old.merge(signatures, names));
+		if (log.isDebugEnabled()) {
+			for (int i = 0; i < signatures.length; i++) {
+				log.debug("Mapping method {}.{}{} to {}", owner, symbols.getSignatureName(signatures[i]),
+						symbols.getSignatureDesc(signatures[i]), names[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return the new name of the given class
+	 */
+	public String mapType(String name) {
+		String mapped = current.types.get(name);
+		return mapped == null ? name : mapped;
+	}
+
+	/**
+	 * @return the new name of the given field, or null if it isn't renamed
+	 */
+	public String mapField(String owner, String name) {
+		return current.getField(owner, name);
+	}
+
+	/**
+	 * @return the new name of the given method, or null if it isn't renamed
+	 */
+	public String mapMethod(String owner, String name, String desc) {
+		Methods m = methods.get(owner);
+		if (m == null)
+			return null;
+		int signature = symbols.getSignature(name, desc);
+		if (signature == -1)
+			return null;
+		int i = Arrays.binarySearch(m.signatures, signature);
+		return i < 0 ? null : m.names[i];
+	}
+
+	/**
+	 * @param previous the mappings of an earlier run over the same program, in {@link SimpleRemapper} format
+	 */
+	public void restore(Map<String, String> previous) {
+		for (Map.Entry<String, String> entry : previous.entrySet()) {
+			String key = entry.getKey();
+			int dot = key.indexOf('.');
+			int paren = key.indexOf('(', dot + 1);
+			if (dot == -1) {
+				this.previous.types.put(key, entry.getValue());
+			} else if (paren == -1) {
+				this.previous.fields.computeIfAbsent(key.substring(0, dot), k -> new HashMap<>())
+				                    .put(key.substring(dot + 1), entry.getValue());
+			} else {
+				this.previous.methods.computeIfAbsent(key.substring(0, dot), k -> new HashMap<>())
+				                     .computeIfAbsent(key.substring(dot + 1, paren), k -> new HashMap<>())
+				                     .put(key.substring(paren), entry.getValue());
+			}
+		}
+		this.reserved.addAll(previous.values());
+	}
+
+	/**
+	 * @return the name the class was given by the earlier run, or null
+	 */
+	public String getPreviousType(String name) {
+		return previous.types.get(name);
+	}
+
+	/**
+	 * @return the name the field was given by the earlier run, or null
+	 */
+	public String getPreviousField(String owner, String name) {
+		return previous.getField(owner, name);
+	}
+
+	/**
+	 * @return the name the method was given by the earlier run, or null
+	 */
+	public String getPreviousMethod(String owner, String name, String desc) {
+		Map<String, Map<String, String>> names = previous.methods.get(owner);
+		Map<String, String> descs = names == null ? null : names.get(name);
+		return descs == null ? null : descs.get(desc);
+	}
+
+	/**
+	 * @return whether the earlier run gave the name to anything, so that a new name shouldn't be taken from it
+	 */
+	public boolean isReserved(String name) {
+		return reserved.contains(name);
+	}
+
+	public boolean isEmpty() {
+		return current.types.isEmpty() && current.fields.isEmpty() && methods.isEmpty();
+	}
+
+	/**
+	 * @return every rename in {@link SimpleRemapper} format, made on each call
+	 */
+	public Map<String, String> asMap() {
+		Map<String, String> map = new HashMap<>(current.types);
+		for (Map.Entry<String, Map<String, String>> owner : current.fields.entrySet()) {
+			for (Map.Entry<String, String> field : owner.getValue().entrySet())
+				map.put(owner.getKey() + '.' + field.getKey(), field.getValue());
+		}
+		for (Map.Entry<String, Methods> owner : methods.entrySet()) {
+			Methods m = owner.getValue();
+			for (int i = 0; i < m.signatures.length; i++) {
+				map.put(owner.getKey() + '.' + symbols.getSignatureName(m.signatures[i]) +
+						symbols.getSignatureDesc(m.signatures[i]), m.names[i]);
+			}
+		}
+		return Collections.unmodifiableMap(map);
+	}
+
+	public Remapper toRemapper() {
+		return new Remapper() {
+			@Override
+			public String map(String type) {
+				return current.types.get(type);
+			}
+
+			@Override
+			public String mapFieldName(String owner, String name, String desc) {
+				String mapped = mapField(owner, name);
+				return mapped == null ? name : mapped;
+			}
+
+			@Override
+			public String mapMethodName(String owner, String name, String desc) {
+				String mapped = mapMethod(owner, name, desc);
+				return mapped == null ? name : mapped;
+			}
+		};
+	}
+
+	/**
+	 * Class and field renames, and for an earlier run the method renames by name and descriptor, since the
+	 * signatures of its methods don't have ids
+	 */
+	private static class Names {
+
+		private final Map<String, String> types = new HashMap<>();
+		private final Map<String, Map<String, String>> fields = new HashMap<>();
+		private final Map<String, Map<String, Map<String, String>>> methods = new HashMap<>();
+
+		String getField(String owner, String name) {
+			Map<String, String> names = fields.get(owner);
+			return names == null ? null : names.get(name);
+		}
+
+	}
+
+	private static class Methods {
+
+		private final int[] signatures;
+		private final String[] names;
+
+		Methods(int[] signatures, String[] names) {
+			this.signatures = signatures;
+			this.names = names;
+		}
+
+		/**
+		 * @return these and the given methods, the given ones replacing any with the same signature
+		 */
+		Methods merge(int[] signatures, String[] names) {
+			int[] s = new int[this.signatures.length + signatures.length];
+			String[] n = new String[s.length];
+			int i = 0, j = 0, k = 0;
+			while (i < this.signatures.length || j < signatures.length) {
+				int a = i < this.signatures.length ? this.signatures[i] : Integer.MAX_VALUE;
+				int b = j < signatures.length ? signatures[j] : Integer.MAX_VALUE;
+				if (a < b) {
+					s[k] = a;
+					n[k++] = this.names[i++];
+				} else {
+					if (a == b)
+						i++;
+					s[k] = b;
+					n[k++] = names[j++];
+				}
+			}
+			return new Methods(Arrays.copyOf(s, k), Arrays.copyOf(n, k));
+		}
+
+	}
+
+}
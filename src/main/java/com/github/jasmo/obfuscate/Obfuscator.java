@@ -7,57 +7,153 @@
 
 package com.github.jasmo.obfuscate;
 
+import com.github.jasmo.util.Archive;
+import com.github.jasmo.util.ArchiveWriter;
+import com.github.jasmo.util.Parallel;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.tree.ClassNode;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.jar.JarEntry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 
 /**
  * @author Caleb Whiting
  */
-public class Obfuscator {
+public class Obfuscator implements Closeable {
 
 	private static final Logger log = LogManager.getLogger("Obfuscator");
 
-	private final Map<String, ClassNode> classMap = new HashMap<>();
+	/**
+	 * number of entries per thread that may be serialized ahead of the one being written
+	 */
+	private static final int WINDOW = 16;
+
+	private final ClassStore classStore = new ClassStore(this);
+	private final SymbolTable symbols = new SymbolTable();
+	private final Mappings mappings = new Mappings(symbols);
+	private final Hierarchy hierarchy = new Hierarchy();
 	private final Map<String, byte[]> files = new HashMap<>();
+	/**
+	 * resources that weren't read in pass-through mode, copied to the output unless replaced in {@link #files}
+	 */
+	private final Map<String, Archive.Entry> resources = new HashMap<>();
+	/**
+	 * the input archives, kept open until the obfuscator is closed since unchanged entries are copied from them
+	 */
+	private final List<Archive> archives = new ArrayList<>();
+	/**
+	 * class transformers applied since the last tree transformer, run together in a single pass
+	 */
+	private final List<ClassTransformer> pending = new ArrayList<>();
+	private Cache cache;
 
 	private int readFlags = ClassReader.EXPAND_FRAMES;
 	private int writeFlags = ClassWriter.COMPUTE_MAXS;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean verify = true;
+	private boolean lazy;
+	private boolean passThrough;
 
-	private void supplyJar(JarFile jar) {
-		Enumeration<JarEntry> entries = jar.entries();
-		while (entries.hasMoreElements()) {
-			JarEntry entry = entries.nextElement();
-			try (InputStream in = jar.getInputStream(entry)) {
-				byte[] bytes;
-				try (ByteArrayOutputStream tmp = new ByteArrayOutputStream()) {
-					byte[] buf = new byte[256];
-					for (int n; (n = in.read(buf)) != -1; ) {
-						tmp.write(buf, 0, n);
-					}
-					bytes = tmp.toByteArray();
+	private void supplyJar(Path path) throws IOException {
+		Archive archive = new Archive(path, isVerify());
+		archives.add(archive);
+		// raw copies would skip verification
+		boolean raw = !archive.isVerified();
+		if (isPassThrough() && !raw)
+			log.info("Reading every entry of signed jar {} to verify it, instead of copying them as they are", path);
+		supply(archive.entries(), entry -> entry.getName(), entry -> {
+			try {
+				return archive.read(entry);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, entry -> raw ? entry : null);
+	}
+
+	private void supplyFiles(Path root, List<Path> files) throws IOException {
+		supply(files, file -> root.relativize(file).toString(), file -> {
+			try {
+				return Files.readAllBytes(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, file -> null);
+	}
+
+	/**
+	 * Reads and parses each source, on the worker pool if more than one thread is configured.
+	 * Results are merged in source order, so the maps end up exactly as a serial read would leave them.
+	 * In pass-through mode, resources that came from an archive aren't read at all.
+	 *
+	 * @throws IOException the first failure to read a source, after the other workers have finished
+	 */
+	private <T> void supply(List<T> sources, Function<T, String> naming, Function<T, byte[]> reader,
+	                        Function<T, Archive.Entry> origin) throws IOException {
+		Object[] results = new Object[sources.size()];
+		Cache.Input[] inputs = new Cache.Input[sources.size()];
+		try {
+			Parallel.forEach(getThreads(), results.length, i -> {
+				String name = naming.apply(sources.get(i));
+				Archive.Entry entry = origin.apply(sources.get(i));
+				if (isPassThrough() && entry != null && !name.endsWith(".class")) {
+					log.debug(" File found: {}", name);
+					results[i] = entry;
+					return;
 				}
-				if (!entry.getName().endsWith(".class")) {
-					getFiles().put(entry.getName(), bytes);
-					continue;
+				byte[] bytes = reader.apply(sources.get(i));
+				if (name.endsWith(".class")) {
+					log.debug(" Class found: {}", name);
+					if (getCache() != null)
+						inputs[i] = Cache.describe(bytes);
+					if (isLazy()) {
+						// only parsed once a transformer needs it
+						results[i] = bytes;
+						return;
+					}
+					ClassNode node = new ClassNode();
+					new ClassReader(bytes).accept(node, getReadFlags());
+					results[i] = node;
+				} else {
+					log.debug(" File found: {}", name);
+					results[i] = bytes;
 				}
-				ClassNode c = new ClassNode();
-				new ClassReader(bytes).accept(c, getReadFlags());
-				getClassMap().put(c.name, c);
-			} catch (IOException e) {
-				e.printStackTrace();
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		for (int i = 0; i < results.length; i++) {
+			String name = naming.apply(sources.get(i));
+			if (inputs[i] != null)
+				getCache().put(inputs[i]);
+			if (results[i] instanceof ClassNode) {
+				getClassStore().put((ClassNode) results[i]);
+			} else if (results[i] instanceof Archive.Entry) {
+				getFiles().remove(name);
+				resources.put(name, (Archive.Entry) results[i]);
+			} else if (results[i] != null && name.endsWith(".class")) {
+				getClassStore().put((byte[]) results[i], isPassThrough() ? origin.apply(sources.get(i)) : null);
+			} else if (results[i] != null) {
+				resources.remove(name);
+				getFiles().put(name, (byte[]) results[i]);
 			}
 		}
 	}
@@ -65,32 +161,25 @@ public class Obfuscator {
 	public void supply(Path root) throws IOException {
 		if (root.toString().endsWith(".jar")) {
 			log.debug("Supplying jar file: {}", root);
-			supplyJar(new JarFile(root.toAbsolutePath().toString()));
+			supplyJar(root);
 			return;
 		}
 		if (!Files.isDirectory(root))
 			throw new IOException("Cannot specify files, only classpath root directory.");
 		log.debug("Walking file tree: {}", root);
+		// files are collected and read in batches, nested jars are read in between to keep the walk order
+		List<Path> pending = new ArrayList<>();
 		Files.walkFileTree(root, new HashSet<>(), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
 			@Override
 			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
 				if (file.toString().endsWith(".jar")) {
+					supplyFiles(root, pending);
+					pending.clear();
 					log.debug("  Supplying jar file: {}", file);
-					supplyJar(new JarFile(file.toAbsolutePath().toString()));
+					supplyJar(file);
 					return FileVisitResult.CONTINUE;
 				}
-				String relative = root.relativize(file).toString();
-				byte[] bytes = Files.readAllBytes(file);
-				if (relative.endsWith(".class")) {
-					log.debug(" Class found: {}", relative);
-					ClassNode node = new ClassNode();
-					ClassReader reader = new ClassReader(bytes);
-					reader.accept(node, getReadFlags());
-					getClassMap().put(node.name, node);
-				} else {
-					log.debug(" File found: {}", relative);
-					getFiles().put(relative, bytes);
-				}
+				pending.add(file);
 				return FileVisitResult.CONTINUE;
 			}
 
@@ -99,51 +188,263 @@ public class Obfuscator {
 				return FileVisitResult.CONTINUE;
 			}
 		});
+		supplyFiles(root, pending);
 	}
 
 	public void apply(Transformer transformer) {
-		transformer.transform(getClassMap());
-		// re-populate class map, so that any changed names are registered
-		List<ClassNode> values = new ArrayList<>(getClassMap().values());
-		getClassMap().clear();
-		for (ClassNode cn : values)
-			getClassMap().put(cn.name, cn);
+		flush();
+		Map<String, ClassNode> classMap = getClassStore().open(transformer.level());
+		// not through the map, which would take every class to be changed
+		getHierarchy().update(getClassStore().classes());
+		int pass = getClassStore().getPass();
+		transformer.transform(classMap);
+		// re-populate class store, so that any changed names are registered
+		getClassStore().close(classMap);
+		// classes changed in place are still the same objects, which the symbol table takes to be unchanged
+		if (!getClassStore().dirtySince(pass).isEmpty())
+			getSymbols().invalidate();
+	}
+
+	/**
+	 * Queues a class transformer. Class transformers applied one after another are chained, and every class goes
+	 * through the whole chain at once; either before the next tree {@link Transformer}, on {@link #flush()}, or
+	 * while it is being written.
+	 */
+	public void applyPerClass(ClassTransformer transformer) {
+		pending.add(transformer);
+	}
+
+	/**
+	 * Runs the queued class transformers over every class
+	 */
+	public void flush() {
+		if (pending.isEmpty())
+			return;
+		getClassStore().transform(chain());
+		pending.clear();
+	}
+
+	/**
+	 * @return an adapter that wraps a class visitor in the queued class transformers, the first applied one outermost
+	 */
+	private UnaryOperator<ClassVisitor> chain() {
+		return chain(null);
+	}
+
+	/**
+	 * @param remapper applied after every class transformer, or null
+	 */
+	private UnaryOperator<ClassVisitor> chain(Remapper remapper) {
+		List<ClassTransformer> chain = new ArrayList<>(pending);
+		return next -> {
+			ClassVisitor cv = remapper == null ? next : new ClassRemapper(next, remapper);
+			for (int i = chain.size() - 1; i >= 0; i--)
+				cv = chain.get(i).transform(cv);
+			return cv;
+		};
+	}
+
+	/**
+	 * Closes the input archives, once the output has been written
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (Archive archive : archives) {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				if (failure == null)
+					failure = e;
+				else
+					failure.addSuppressed(e);
+			}
+		}
+		archives.clear();
+		if (failure != null)
+			throw failure;
 	}
 
 	public void write(Path dest) throws IOException {
 		Files.deleteIfExists(dest);
 		StandardOpenOption[] override = {StandardOpenOption.CREATE, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING};
 		if (dest.toString().endsWith(".jar")) {
-			try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(dest, override))) {
-				writeJar(out);
+			try (ArchiveWriter out = new ArchiveWriter(Files.newOutputStream(dest, override))) {
+				write(new JarOutput(out));
 			}
 		} else {
-			for (ClassNode node : getClassMap().values()) {
-				ClassWriter writer = new ClassWriter(getWriteFlags());
-				node.accept(writer);
-				/**/
-				Files.write(Paths.get(dest.toString(), node.name + ".class"), writer.toByteArray(), override);
+			write(new DirectoryOutput(dest, override));
+		}
+	}
+
+	/**
+	 * Serializes classes on the worker pool, while the calling thread hands the results to the output in
+	 * {@link #getEntryNames(Map)} order. At most {@link #WINDOW} entries per thread are held in memory at a time.
+	 * Entries that can be copied from an input archive as they are skip serialization altogether, as do classes
+	 * that can be taken from the {@link #getCache() cache}.
+	 * Queued class transformers and the {@link #getMappings() mappings} are fused into serialization, so they cost
+	 * no extra pass over the classes.
+	 */
+	private void write(Output output) throws IOException {
+		Map<String, String> classes = new HashMap<>();
+		Map<String, byte[]> cached = new HashMap<>();
+		// the transforms were skipped if the cache is up to date, in which case the renames are those of the last run
+		Map<String, String> mappings = null;
+		if (getCache() != null) {
+			mappings = isUpToDate() ? getCache().getMappings() : getMappings().asMap();
+			getCache().prepare(getThreads(), mappings);
+		}
+		for (String name : getClassStore().names()) {
+			Cache.Record record = getCache() != null ? getCache().reuse(name) : null;
+			if (record != null) {
+				classes.put(record.getEntryName(), name);
+				cached.put(record.getEntryName(), record.getBytes());
+			} else {
+				classes.put(getMappings().mapType(name) + ".class", name);
 			}
-			for (Map.Entry<String, byte[]> entry : getFiles().entrySet()) {
-				Files.write(Paths.get(dest.toString(), entry.getKey()), entry.getValue(), override);
+		}
+		if (getCache() != null)
+			log.info("Reusing {} of {} classes from cache", cached.size(), classes.size());
+		List<String> names = getEntryNames(classes);
+		UnaryOperator<ClassVisitor> adapter = pending.isEmpty() && getMappings().isEmpty() ? null :
+				chain(getMappings().isEmpty() ? null : getMappings().toRemapper());
+		if (getThreads() <= 1) {
+			for (String name : names) {
+				String className = classes.get(name);
+				Archive.Entry source = getSource(name, className, adapter);
+				byte[] bytes = cached.get(name);
+				if (source == null && bytes == null)
+					bytes = toByteArray(name, className, adapter);
+				write(output, new Pending(name, className, source, CompletableFuture.completedFuture(bytes)));
+			}
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(getThreads());
+			try {
+				Deque<Pending> window = new ArrayDeque<>();
+				for (String name : names) {
+					String className = classes.get(name);
+					Archive.Entry source = getSource(name, className, adapter);
+					Future<byte[]> bytes = null;
+					if (cached.containsKey(name))
+						bytes = CompletableFuture.completedFuture(cached.get(name));
+					else if (source == null)
+						bytes = pool.submit(() -> toByteArray(name, className, adapter));
+					window.add(new Pending(name, className, source, bytes));
+					if (window.size() >= getThreads() * WINDOW)
+						write(output, window.poll());
+				}
+				while (!window.isEmpty())
+					write(output, window.poll());
+			} finally {
+				pool.shutdownNow();
 			}
 		}
+		if (getCache() != null)
+			getCache().save(isUpToDate() ? null : mappings);
 	}
 
-	private void writeJar(JarOutputStream out) throws IOException {
-		for (ClassNode node : getClassMap().values()) {
-			JarEntry entry = new JarEntry(node.name + ".class");
-			out.putNextEntry(entry);
-			ClassWriter writer = new ClassWriter(getWriteFlags());
-			node.accept(writer);
-			out.write(writer.toByteArray());
-			out.closeEntry();
+	private void write(Output output, Pending pending) throws IOException {
+		if (pending.source != null) {
+			output.copy(pending.name, pending.source);
+			return;
 		}
-		for (Map.Entry<String, byte[]> entry : getFiles().entrySet()) {
-			out.putNextEntry(new JarEntry(entry.getKey()));
-			out.write(entry.getValue());
-			out.closeEntry();
+		byte[] bytes = get(pending.bytes);
+		output.write(pending.name, bytes);
+		if (pending.className != null && getCache() != null)
+			getCache().store(pending.className, pending.name, bytes);
+	}
+
+	private byte[] get(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for worker threads");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return the names of every class file and resource to be written, sorted so that output is the same
+	 * regardless of hash ordering or thread count. The manifest comes first, as {@link java.util.jar.JarInputStream}
+	 * expects it to.
+	 */
+	private List<String> getEntryNames(Map<String, String> classes) {
+		Set<String> names = new TreeSet<>(getFiles().keySet());
+		names.addAll(resources.keySet());
+		names.addAll(classes.keySet());
+		List<String> list = new ArrayList<>(names.size());
+		for (String first : new String[]{"META-INF/", JarFile.MANIFEST_NAME}) {
+			if (names.remove(first))
+				list.add(first);
 		}
+		list.addAll(names);
+		return list;
+	}
+
+	/**
+	 * @param className the class written to the entry, or null if it's a resource
+	 * @return the input archive entry that the given output entry can be copied from without changes, or null
+	 */
+	private Archive.Entry getSource(String entryName, String className, UnaryOperator<ClassVisitor> adapter) {
+		if (className != null)
+			return adapter == null && getCache() == null ? getClassStore().getSource(className) : null;
+		return getFiles().containsKey(entryName) ? null : resources.get(entryName);
+	}
+
+	private byte[] toByteArray(String entryName, String className, UnaryOperator<ClassVisitor> adapter) {
+		if (className != null)
+			return adapter == null ? getClassStore().toByteArray(className) : getClassStore().toByteArray(className, adapter);
+		return getFiles().get(entryName);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public boolean isVerify() {
+		return verify;
+	}
+
+	/**
+	 * @param verify whether signed jar files should have their signatures verified while being read
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * @param lazy whether classes should be kept as bytes between transforms, see {@link ClassStore}.
+	 *             Must be set before classes are supplied.
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public boolean isPassThrough() {
+		return passThrough;
+	}
+
+	/**
+	 * @param passThrough whether resources from input jars should be copied to the output jar as they are, still
+	 *                    compressed, instead of being read into {@link #getFiles()}. Classes that come out of every
+	 *                    transform unchanged are copied the same way. Must be set before anything is supplied.
+	 */
+	public void setPassThrough(boolean passThrough) {
+		this.passThrough = passThrough;
 	}
 
 	public int getReadFlags() {
@@ -166,8 +467,124 @@ public class Obfuscator {
 		return files;
 	}
 
-	public Map<String, ClassNode> getClassMap() {
-		return classMap;
+	public Cache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @param cache state from the last run over the same program, see {@link Cache}. Must be set before anything is
+	 *              supplied.
+	 */
+	public void setCache(Cache cache) {
+		this.cache = cache;
+		getMappings().restore(cache.getMappings());
+	}
+
+	/**
+	 * @return whether a cache is used and the supplied classes are the same as last time, in which case every class
+	 * is written from the cache and the transforms can be skipped
+	 */
+	public boolean isUpToDate() {
+		return getCache() != null && getCache().isUpToDate();
+	}
+
+	public ClassStore getClassStore() {
+		return classStore;
+	}
+
+	/**
+	 * @return the renames to apply when the output is written, see {@link Mappings}
+	 */
+	public Mappings getMappings() {
+		return mappings;
+	}
+
+	/**
+	 * @return the class hierarchy, up to date with the classes handed to each {@link Transformer}
+	 */
+	public Hierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * @return the symbol table the {@link #getMappings() mappings} are keyed by, for transformers to
+	 * {@link SymbolTable#update(Map) update} with the classes they are handed and share
+	 */
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+
+	private static abstract class Output {
+
+		abstract void write(String name, byte[] bytes) throws IOException;
+
+		abstract void copy(String name, Archive.Entry source) throws IOException;
+
+	}
+
+	private static class JarOutput extends Output {
+
+		private final ArchiveWriter out;
+
+		JarOutput(ArchiveWriter out) {
+			this.out = out;
+		}
+
+		@Override
+		void write(String name, byte[] bytes) throws IOException {
+			out.write(name, bytes);
+		}
+
+		@Override
+		void copy(String name, Archive.Entry source) throws IOException {
+			out.copy(name, source);
+		}
+
+	}
+
+	private static class DirectoryOutput extends Output {
+
+		private final Path root;
+		private final OpenOption[] options;
+
+		DirectoryOutput(Path root, OpenOption[] options) {
+			this.root = root;
+			this.options = options;
+		}
+
+		@Override
+		void write(String name, byte[] bytes) throws IOException {
+			Path path = root.resolve(name);
+			if (name.endsWith("/")) {
+				Files.createDirectories(path);
+				return;
+			}
+			if (path.getParent() != null)
+				Files.createDirectories(path.getParent());
+			Files.write(path, bytes, options);
+		}
+
+		@Override
+		void copy(String name, Archive.Entry source) throws IOException {
+			write(name, source.getArchive().read(source));
+		}
+
+	}
+
+	private static class Pending {
+
+		private final String name;
+		private final String className;
+		private final Archive.Entry source;
+		private final Future<byte[]> bytes;
+
+		Pending(String name, String className, Archive.Entry source, Future<byte[]> bytes) {
+			this.name = name;
+			this.className = className;
+			this.source = source;
+			this.bytes = bytes;
+		}
+
 	}
 
 }
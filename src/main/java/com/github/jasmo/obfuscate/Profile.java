@@ -0,0 +1,119 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import com.github.jasmo.util.DigestHelper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * How often each method ran in a training run of the unobfuscated program, used by transformers to leave the
+ * hottest methods fast. Read from a text file with one method per line, keyed the same way as method
+ * {@link Mappings}, followed by its count:
+ * <pre>
+ * &lt;owner&gt;.&lt;name&gt;&lt;desc&gt; &lt;count&gt;
+ * </pre>
+ * Blank lines and lines starting with # are skipped, and a method listed more than once has its counts added up.
+ * <p>
+ * The budget is the share of all the counted calls that may run through rewritten code. Methods are hot from the
+ * most called down, until the calls of the methods left fit in the budget. Methods that aren't in the profile
+ * count as never called.
+ */
+public class Profile {
+
+	private static final Logger log = LogManager.getLogger("Profile");
+
+	private final Map<String, Long> counts = new HashMap<>();
+	private final double budget;
+	private Set<String> hot;
+
+	/**
+	 * @param budget the share of calls that may run through rewritten code, from 0 to 1
+	 */
+	public Profile(double budget) {
+		if (budget < 0 || budget > 1)
+			throw new IllegalArgumentException("Budget must be between 0 and 1: " + budget);
+		this.budget = budget;
+	}
+
+	public static Profile read(Path file, double budget) throws IOException {
+		Profile profile = new Profile(budget);
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			for (int n = 1; (line = reader.readLine()) != null; n++) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				int space = line.lastIndexOf(' ');
+				try {
+					if (space == -1)
+						throw new NumberFormatException("missing count");
+					profile.add(line.substring(0, space).trim(), Long.parseLong(line.substring(space + 1)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Invalid profile entry at " + file + ":" + n + ": " + line, e);
+				}
+			}
+		}
+		log.info("Profile marks {} of {} methods hot", profile.getHotMethods().size(), profile.counts.size());
+		return profile;
+	}
+
+	/**
+	 * @param key   the method, as &lt;owner&gt;.&lt;name&gt;&lt;desc&gt;
+	 * @param count the number of calls to add to it
+	 */
+	public void add(String key, long count) {
+		counts.merge(key, count, Long::sum);
+		hot = null;
+	}
+
+	/**
+	 * @return the keys of the hot methods
+	 */
+	public Set<String> getHotMethods() {
+		if (hot == null) {
+			List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+			// methods called equally often are taken in name order, so that the same counts give the same hot methods
+			entries.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+			long total = 0;
+			for (Map.Entry<String, Long> entry : entries)
+				total += entry.getValue();
+			double remaining = total;
+			Set<String> result = new HashSet<>();
+			for (Map.Entry<String, Long> entry : entries) {
+				if (remaining <= total * budget)
+					break;
+				result.add(entry.getKey());
+				remaining -= entry.getValue();
+			}
+			hot = result;
+		}
+		return hot;
+	}
+
+	/**
+	 * @return a digest of the hot methods, which only changes if they do
+	 */
+	public String getFingerprint() {
+		MessageDigest digest = DigestHelper.sha1();
+		for (String key : new TreeSet<>(getHotMethods()))
+			DigestHelper.update(digest, key);
+		return DigestHelper.toHex(digest.digest());
+	}
+
+}
@@ -10,30 +10,49 @@ package com.github.jasmo.obfuscate;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.*;
-import org.objectweb.asm.tree.*;
-
-import java.util.*;
 
 /**
  * @author Caleb Whiting
+ *
+ * Drops the source file, line number and local variable attributes, as {@link ClassReader#SKIP_DEBUG} would
  */
-public class RemoveDebugInfo implements Transformer {
+public class RemoveDebugInfo implements ClassTransformer {
 
 	private static final Logger log = LogManager.getLogger("RemoveDebugInfo");
 
 	@Override
-	public void transform(Map<String, ClassNode> classMap) {
-		Map<String, ClassNode> map = new HashMap<>();
-		for (ClassNode cn : classMap.values()) {
-			log.debug("Removing debug info from class: {}", cn.name);
-			ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-			cn.accept(writer);
-			ClassNode clone = new ClassNode();
-			new ClassReader(writer.toByteArray()).accept(clone, ClassReader.SKIP_DEBUG);
-			map.put(clone.name, clone);
-		}
-		classMap.clear();
-		classMap.putAll(map);
+	public ClassVisitor transform(ClassVisitor next) {
+		return new ClassVisitor(Opcodes.ASM9, next) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				log.debug("Removing debug info from class: {}", name);
+				super.visit(version, access, name, signature, superName, interfaces);
+			}
+
+			@Override
+			public void visitSource(String source, String debug) {
+			}
+
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+				return mv == null ? null : new MethodVisitor(Opcodes.ASM9, mv) {
+					@Override
+					public void visitLineNumber(int line, Label start) {
+					}
+
+					@Override
+					public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+					}
+
+					@Override
+					public AnnotationVisitor visitLocalVariableAnnotation(int typeRef, TypePath typePath, Label[] start,
+					                                                      Label[] end, int[] index, String desc, boolean visible) {
+						return null;
+					}
+				};
+			}
+		};
 	}
 
 }
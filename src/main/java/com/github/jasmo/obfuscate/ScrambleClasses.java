@@ -17,16 +17,25 @@ import java.util.*;
 
 /**
  * @author Caleb Whiting
+ *
+ * Moves every class that isn't skipped into the base package, under a generated name. Given {@link Mappings}, the
+ * new names are only added to them, otherwise they are applied straight away.
  */
 public class ScrambleClasses implements Transformer {
 
 	private static final Logger log = LogManager.getLogger("ScrambleClasses");
 
+	private final Mappings mappings;
 	private UniqueStringGenerator generator;
 	private final String basePackage;
 	private final List<String> skip;
 
 	public ScrambleClasses(UniqueStringGenerator generator, String basePackage, String... skip) {
+		this(null, generator, basePackage, skip);
+	}
+
+	public ScrambleClasses(Mappings mappings, UniqueStringGenerator generator, String basePackage, String... skip) {
+		this.mappings = mappings;
 		this.generator = generator;
 		this.basePackage = basePackage.replace('.', '/');
 		for (int i = 0; i < skip.length; i++) {
@@ -47,13 +56,29 @@ public class ScrambleClasses implements Transformer {
 			ClassNode cn = classMap.get(key);
 			String name = cn.name;
 			if (!skip.contains(name)) {
-				name = generator.next();
-				name = basePackage + "/" + name;
+				String previous = mappings != null ? mappings.getPreviousType(name) : null;
+				name = previous != null ? previous : next();
 			}
 			remap.put(cn.name, name);
 			log.debug("Mapping class {} to {}", cn.name, name);
 		}
-		BytecodeHelper.applyMappings(classMap, remap);
+		if (mappings != null)
+			mappings.putAll(remap);
+		else
+			BytecodeHelper.applyMappings(classMap, remap);
+	}
+
+	private String next() {
+		String name;
+		do {
+			name = basePackage + "/" + generator.next();
+		} while (mappings != null && mappings.isReserved(name));
+		return name;
+	}
+
+	@Override
+	public Level level() {
+		return mappings != null ? Level.HEADER : Level.CODE;
 	}
 
 }
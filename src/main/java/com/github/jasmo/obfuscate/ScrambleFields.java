@@ -8,54 +8,80 @@
 package com.github.jasmo.obfuscate;
 
 import com.github.jasmo.util.BytecodeHelper;
+import com.github.jasmo.util.IdTable;
 import com.github.jasmo.util.UniqueStringGenerator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.tree.*;
 
 import java.util.*;
-import java.util.stream.*;
 
 /**
  * @author Caleb Whiting
+ *
+ * Gives every field a generated name. Given {@link Mappings}, the new names are only added to them, otherwise they
+ * are applied straight away.
  */
 public class ScrambleFields implements Transformer {
 	private static final Logger log = LogManager.getLogger("ScrambleFields");
+	private final Mappings mappings;
+	private final Hierarchy hierarchy;
 	private final UniqueStringGenerator generator;
 
 	public ScrambleFields(UniqueStringGenerator generator) {
+		this(null, generator);
+	}
+
+	public ScrambleFields(Mappings mappings, UniqueStringGenerator generator) {
+		this(mappings, null, generator);
+	}
+
+	/**
+	 * @param hierarchy the hierarchy of the classes to be transformed, or null to work it out on every transform
+	 */
+	public ScrambleFields(Mappings mappings, Hierarchy hierarchy, UniqueStringGenerator generator) {
+		this.mappings = mappings;
+		this.hierarchy = hierarchy;
 		this.generator = generator;
 	}
 
 	@Override
 	public void transform(Map<String, ClassNode> classMap) {
-		Map<String, String> remap = new HashMap<>();
+		Hierarchy hierarchy = this.hierarchy;
+		if (hierarchy == null) {
+			hierarchy = new Hierarchy();
+			hierarchy.update(classMap);
+		}
+		// names are recorded in mappings of our own when they are applied straight away
+		Mappings renames = mappings != null ? mappings : new Mappings();
+		SymbolTable symbols = renames.getSymbols();
+		symbols.update(classMap);
 		generator.reset();
-		List<FieldNode> fields = new ArrayList<>();
-		for (ClassNode c : classMap.values()) fields.addAll(c.fields);
-		Collections.shuffle(fields);
-		for (FieldNode f : fields) {
-			ClassNode c = getOwner(f, classMap);
-			String name = generator.next();
-			Stack<ClassNode> stack = new Stack<>();
-			stack.add(c);
-			while (stack.size() > 0) {
-				ClassNode node = stack.pop();
-				String key = node.name + "." + f.name;
-				remap.put(key, name);
-				stack.addAll(classMap.values().stream().
-						filter(cn -> cn.superName.equals(node.name)).
-						                     collect(Collectors.toList()));
-			}
+		// assign names in random order, so that there isn't a naming pattern
+		for (int id : IdTable.shuffle(symbols.getFieldCount())) {
+			ClassNode c = symbols.getClass(symbols.getFieldOwner(id));
+			FieldNode f = symbols.getField(id);
+			String previous = renames.getPreviousField(c.name, f.name);
+			String name = previous != null ? previous : next();
+			log.debug("Mapping field {}.{} to {}", c.name, f.name, name);
+			for (String subclass : hierarchy.getSubclasses(c.name))
+				renames.putField(subclass, f.name, name);
 		}
-		BytecodeHelper.applyMappings(classMap, remap);
+		if (mappings == null)
+			BytecodeHelper.applyMappings(classMap, renames.toRemapper());
+	}
+
+	private String next() {
+		String name;
+		do {
+			name = generator.next();
+		} while (mappings != null && mappings.isReserved(name));
+		return name;
 	}
 
-	private ClassNode getOwner(FieldNode f, Map<String, ClassNode> classMap) {
-		for (ClassNode c : classMap.values())
-			if (c.fields.contains(f))
-				return c;
-		return null;
+	@Override
+	public Level level() {
+		return mappings != null ? Level.MEMBERS : Level.CODE;
 	}
 
 }
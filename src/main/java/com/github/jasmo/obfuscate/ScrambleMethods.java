@@ -8,7 +8,8 @@
 package com.github.jasmo.obfuscate;
 
 import com.github.jasmo.util.BytecodeHelper;
-import com.github.jasmo.util.ClassPath;
+import com.github.jasmo.util.IdTable;
+import com.github.jasmo.util.UnionFind;
 import com.github.jasmo.util.UniqueStringGenerator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -16,110 +17,287 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
 import java.util.*;
-import java.util.function.*;
 
 /**
  * @author Caleb Whiting
  *         <p>
- *         Obfuscates the names of methods in the given library
+ *         Obfuscates the names of methods in the given library. Given {@link Mappings}, the new names are only
+ *         added to them, otherwise they are applied straight away.
  */
 public class ScrambleMethods implements Transformer {
 
 	private static final Logger log = LogManager.getLogger("ScrambleMethods");
 
-	private ClassPath env;
-	private Map<String, ClassNode> classMap;
+	private final Mappings shared;
+	private final Hierarchy hierarchy;
 	private final UniqueStringGenerator generator;
 
 	public ScrambleMethods(UniqueStringGenerator generator) {
+		this(null, generator);
+	}
+
+	public ScrambleMethods(Mappings shared, UniqueStringGenerator generator) {
+		this(shared, null, generator);
+	}
+
+	/**
+	 * @param hierarchy the hierarchy of the classes to be transformed, or null to work it out on every transform
+	 */
+	public ScrambleMethods(Mappings shared, Hierarchy hierarchy, UniqueStringGenerator generator) {
+		this.shared = shared;
+		this.hierarchy = hierarchy;
 		this.generator = generator;
 	}
 
 	@Override
 	public void transform(Map<String, ClassNode> classMap) {
-		this.classMap = classMap;
-		// loads all jre libraries from 'java.class.path' system property
-		this.env = ClassPath.getInstance();
+		// library super types are resolved from the class path
+		Hierarchy hierarchy = this.hierarchy;
+		if (hierarchy == null) {
+			hierarchy = new Hierarchy();
+			hierarchy.update(classMap);
+		}
 		// todo: add more in-depth verification
 		List<String> pass = Arrays.asList("main", "createUI");
 		// reset the unique string generator, so that is starts at 'a'
 		generator.reset();
-		Map<String, String> mappings = new HashMap<>();
-		List<MethodNode> methods = new LinkedList<>();
-		for (ClassNode c : classMap.values())
-			methods.addAll(c.methods);
-		// shuffle the methods so that there isn't a naming pattern
-		Collections.shuffle(methods);
-		// create obfuscated name mappings
-		methods:
-		for (MethodNode m : methods) {
-			ClassNode owner = getOwner(m);
+		// names are recorded in mappings of our own when they are applied straight away
+		Mappings renames = shared != null ? shared : new Mappings();
+		SymbolTable symbols = renames.getSymbols();
+		symbols.update(classMap);
+		int count = symbols.getMethodCount();
+		// one extra element stands for the library, a group joined with it keeps its name
+		int library = count;
+		UnionFind groups = new UnionFind(count + 1);
+		for (int id = 0; id < count; id++) {
+			MethodNode m = symbols.getMethod(id);
 			// skip entry points, constructors etc
 			if (m.name.indexOf('<') != -1 || pass.contains(m.name) || (m.access & Opcodes.ACC_NATIVE) != 0) {
-				log.debug("Skipping method: {}.{}{}", owner.name, m.name, m.desc);
-				continue;
+				log.debug("Skipping method: {}.{}{}", symbols.getClass(symbols.getMethodOwner(id)).name, m.name, m.desc);
+				groups.union(id, library);
 			}
-			Stack<ClassNode> stack = new Stack<>();
-			stack.add(owner);
-			// check this is the top-level method
-			while (stack.size() > 0) {
-				ClassNode node = stack.pop();
-				if (node != owner && getMethod(node, m.name, m.desc) != null)
-					// not top-level member
-					continue methods;
-				// push superclass
-				ClassNode parent = getClassNode(node.superName);
-				if (parent != null)
-					stack.push(parent);
-				// push interfaces
-				Set<ClassNode> interfaces = new HashSet<>();
-				String[] interfacesNames = node.interfaces.toArray(new String[node.interfaces.size()]);
-				for (String iname : interfacesNames) {
-					ClassNode iface = getClassNode(iname);
-					if (iface != null) {
-						interfaces.add(iface);
-					}
+		}
+		// every declaration of a signature that a class declares or inherits must have the same name
+		Visible[] visible = new OverrideGroups(symbols, hierarchy, groups, library).resolve();
+		int pinned = groups.find(library);
+		String[] names = new String[count + 1];
+		if (shared != null) {
+			// take the name a group had last time, any of its declarations will do
+			for (int id = 0; id < count; id++) {
+				int group = groups.find(id);
+				if (group != pinned && names[group] == null) {
+					MethodNode m = symbols.getMethod(id);
+					names[group] = shared.getPreviousMethod(symbols.getClass(symbols.getMethodOwner(id)).name, m.name, m.desc);
 				}
-				stack.addAll(interfaces);
 			}
-			// generate obfuscated name
-			String name = generator.next();
-			stack.add(owner);
-			// go through all sub-classes, and define the new name
-			// regardless of if the method exists in the given class or not
-			while (stack.size() > 0) {
-				ClassNode node = stack.pop();
-				String key = node.name + '.' + m.name + m.desc;
-				mappings.put(key, name);
-				// push subclasses
-				classMap.values().forEach(c -> {
-					if (c.superName.equals(node.name) || c.interfaces.contains(node.name))
-						stack.push(c);
-				});
+		}
+		// shuffle the methods so that there isn't a naming pattern
+		for (int id : IdTable.shuffle(count)) {
+			int group = groups.find(id);
+			if (group != pinned && names[group] == null)
+				names[group] = next();
+		}
+		// define the new name in every class that declares or inherits the method,
+		// so that references through any of them are renamed
+		for (int c = 0; c < visible.length; c++) {
+			int[] signatures = new int[visible[c].signatures.length];
+			String[] renamed = new String[signatures.length];
+			int n = 0;
+			for (int i = 0; i < visible[c].signatures.length; i++) {
+				int group = groups.find(visible[c].methods[i]);
+				if (group != pinned) {
+					signatures[n] = visible[c].signatures[i];
+					renamed[n++] = names[group];
+				}
 			}
+			renames.putMethods(symbols.getClass(c).name, Arrays.copyOf(signatures, n), Arrays.copyOf(renamed, n));
 		}
-		BytecodeHelper.applyMappings(classMap, mappings);
+		if (shared == null)
+			BytecodeHelper.applyMappings(classMap, renames.toRemapper());
 	}
 
-	private MethodNode getMethod(ClassNode node, String name, String desc) {
-		return findFirst(node.methods, m -> m.name.equals(name) && m.desc.equals(desc));
+	private String next() {
+		String name;
+		do {
+			name = generator.next();
+		} while (shared != null && shared.isReserved(name));
+		return name;
 	}
 
-	private ClassNode getClassNode(String name) {
-		if (name == null) return null;
-		ClassNode n = classMap.get(name);
-		return n == null ? env.get(name) : n;
+	@Override
+	public Level level() {
+		return shared != null ? Level.MEMBERS : Level.CODE;
 	}
 
-	private ClassNode getOwner(MethodNode m) {
-		return findFirst(classMap.values(), c -> c.methods.contains(m));
+	/**
+	 * Works out which method declarations have to share a name, in one pass over the hierarchy from the top down.
+	 * <p>
+	 * Each class gets the signatures it declares or inherits, along with a declaration of each, by merging those of
+	 * its super types into its own. Wherever two of them have the same signature, their groups are joined. Methods
+	 * inherited from the library are represented by the library element, so that overriding them joins that group.
+	 * <p>
+	 * A library class that can't be found might declare any method, so every method of a class below one keeps
+	 * its name.
+	 */
+	private static class OverrideGroups {
+
+		private final SymbolTable symbols;
+		private final Hierarchy hierarchy;
+		private final UnionFind groups;
+		private final int library;
+		private final Visible[] visible;
+		private final Map<String, Visible> libraries = new HashMap<>();
+		private final Set<String> missing = new HashSet<>();
+
+		OverrideGroups(SymbolTable symbols, Hierarchy hierarchy, UnionFind groups, int library) {
+			this.symbols = symbols;
+			this.hierarchy = hierarchy;
+			this.groups = groups;
+			this.library = library;
+			this.visible = new Visible[symbols.getClassCount()];
+		}
+
+		/**
+		 * @return the signatures every class declares or inherits, by class id
+		 */
+		Visible[] resolve() {
+			for (int c = 0; c < visible.length; c++)
+				resolve(c);
+			return visible;
+		}
+
+		private Visible resolve(int c) {
+			if (visible[c] != null)
+				return visible[c];
+			// guards against circular hierarchies
+			visible[c] = Visible.EMPTY;
+			int[] methods = symbols.getMethods(c);
+			int[] signatures = new int[methods.length];
+			for (int i = 0; i < methods.length; i++)
+				signatures[i] = symbols.getMethodSignature(methods[i]);
+			Visible result = new Visible(signatures, methods);
+			ClassNode node = symbols.getClass(c);
+			if (node.superName != null)
+				result = merge(result, getVisible(node.superName));
+			for (String iface : node.interfaces)
+				result = merge(result, getVisible(iface));
+			if (result.incomplete) {
+				for (int method : methods)
+					groups.union(method, library);
+			}
+			visible[c] = result;
+			return result;
+		}
+
+		private Visible getVisible(String name) {
+			int c = symbols.getClassId(name);
+			return c != -1 ? resolve(c) : getLibrary(name);
+		}
+
+		/**
+		 * @return the signatures that a library class declares or inherits, as far as the program has them
+		 */
+		private Visible getLibrary(String name) {
+			Visible result = libraries.get(name);
+			if (result != null)
+				return result;
+			int[] signatures = new int[16];
+			int count = 0;
+			boolean incomplete = false;
+			ClassNode node = hierarchy.getClass(name);
+			if (node != null) {
+				List<ClassNode> types = hierarchy.getSupertypes(name);
+				types.add(node);
+				for (ClassNode type : types) {
+					for (MethodNode m : type.methods) {
+						int signature = symbols.getSignature(m.name, m.desc);
+						if (signature == -1)
+							continue;
+						if (count == signatures.length)
+							signatures = Arrays.copyOf(signatures, count * 2);
+						signatures[count++] = signature;
+					}
+					incomplete |= isMissing(type.superName);
+					for (String iface : type.interfaces)
+						incomplete |= isMissing(iface);
+				}
+			} else {
+				incomplete = isMissing(name);
+			}
+			// sorted without duplicates, as an overriding method has the signature of the one it overrides
+			Arrays.sort(signatures, 0, count);
+			int unique = 0;
+			for (int i = 0; i < count; i++) {
+				if (unique == 0 || signatures[unique - 1] != signatures[i])
+					signatures[unique++] = signatures[i];
+			}
+			int[] methods = new int[unique];
+			Arrays.fill(methods, library);
+			result = new Visible(Arrays.copyOf(signatures, unique), methods, incomplete);
+			libraries.put(name, result);
+			return result;
+		}
+
+		private boolean isMissing(String name) {
+			if (name == null || hierarchy.getClass(name) != null)
+				return false;
+			if (missing.add(name))
+				log.warn("Library class {} not found, the methods of classes that extend it keep their names", name);
+			return true;
+		}
+
+		/**
+		 * @return the signatures of both, joining the groups of those they have in common
+		 */
+		private Visible merge(Visible a, Visible b) {
+			int[] signatures = new int[a.signatures.length + b.signatures.length];
+			int[] methods = new int[signatures.length];
+			int i = 0, j = 0, n = 0;
+			while (i < a.signatures.length || j < b.signatures.length) {
+				int sa = i < a.signatures.length ? a.signatures[i] : Integer.MAX_VALUE;
+				int sb = j < b.signatures.length ? b.signatures[j] : Integer.MAX_VALUE;
+				if (sa == sb) {
+					groups.union(a.methods[i], b.methods[j]);
+					signatures[n] = sa;
+					methods[n++] = a.methods[i++];
+					j++;
+				} else if (sa < sb) {
+					signatures[n] = sa;
+					methods[n++] = a.methods[i++];
+				} else {
+					signatures[n] = sb;
+					methods[n++] = b.methods[j++];
+				}
+			}
+			return new Visible(Arrays.copyOf(signatures, n), Arrays.copyOf(methods, n), a.incomplete || b.incomplete);
+		}
+
 	}
 
-	private <T> T findFirst(Collection<T> collection, Predicate<T> predicate) {
-		for (T t : collection)
-			if (predicate.test(t))
-				return t;
-		return null;
+	/**
+	 * Signatures in ascending order, each with one of the method declarations that have it
+	 */
+	private static class Visible {
+
+		static final Visible EMPTY = new Visible(new int[0], new int[0]);
+
+		private final int[] signatures;
+		private final int[] methods;
+		/**
+		 * whether a super type couldn't be found, so there may be more signatures than these
+		 */
+		private final boolean incomplete;
+
+		Visible(int[] signatures, int[] methods) {
+			this(signatures, methods, false);
+		}
+
+		Visible(int[] signatures, int[] methods, boolean incomplete) {
+			this.signatures = signatures;
+			this.methods = methods;
+			this.incomplete = incomplete;
+		}
+
 	}
 
 }
@@ -8,13 +8,18 @@
 package com.github.jasmo.obfuscate;
 
 import com.github.jasmo.util.BytecodeHelper;
+import com.github.jasmo.util.Parallel;
+import com.github.jasmo.util.StringPool;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.InstructionAdapter;
 import org.objectweb.asm.tree.*;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import org.apache.logging.log4j.LogManager;
@@ -24,98 +29,669 @@ import static org.objectweb.asm.Opcodes.*;
 
 /**
  * @author Caleb Whiting
+ *
+ * Given a {@link Cache}, the string pool and the class holding it are carried over from the last run. New strings
+ * are only appended, so unchanged classes keep loading their strings from the same index.
+ * <p>
+ * The constants of each method are collected, and later replaced, in parallel. They are merged into the pool in
+ * class and method order, so the pool only depends on the input and the shuffle.
+ * <p>
+ * At runtime each string is decoded the first time it is asked for, and kept in a cache array. Threads racing to
+ * decode the same string store equal, immutable strings, so the cache doesn't need locking.
+ * <p>
+ * In dynamic mode, constants in classes of version 51 and up are loaded by an invokedynamic instruction instead,
+ * whose bootstrap method decodes the string once and links the call site to it as a constant, so once linked the
+ * JIT compiler sees the string itself. Older classes keep calling the unscramble method.
+ * <p>
+ * In local mode, every class keeps its own strings instead, in an unscramble method that picks the encoded string
+ * with a switch and a cache array that is only created on the first call. Nothing is built up front, and a class
+ * only ever decodes its own strings. Interfaces can't hold the mutable cache, so they share the global pool with
+ * classes that have too many strings for one method.
+ * <p>
+ * Otherwise the static initializer of the owner fills in the shared pool, through methods that each hold a bounded
+ * number of strings. Past what the constant pool of the owner can take, the rest are held by new classes that do
+ * nothing else.
+ * <p>
+ * In resource mode, the shared pool is written to a resource next to the classes instead of being built by a
+ * static initializer: a count, the offset of every string and the end of the last, then the encoded strings. The
+ * owner reads it into a {@link ByteBuffer} once, and decodes a string's slice of it the first time it is
+ * asked for.
+ * <p>
+ * Given a {@link Profile}, hot methods keep their constants as they are. In dynamic mode, those in classes that can
+ * use invokedynamic are still scrambled, since once linked their call sites cost the same as the constant.
  */
 public class ScrambleStrings implements Transformer {
 
 	private static final Logger log = LogManager.getLogger("ScrambleStrings");
 
 	private static final String FIELD_NAME = "string_store";
+	private static final String CACHE_NAME = "string_cache";
+	private static final String DATA_NAME = "string_data";
 	private static final String CALL_NAME = "unscramble";
 	private static final String CALL_DESC = "(I)Ljava/lang/String;";
+	private static final String BOOTSTRAP_NAME = "link";
+	/**
+	 * the name of the invokedynamic call sites, which isn't renamed along with the methods
+	 */
+	private static final String DYNAMIC_NAME = "s";
+	private static final String BOOTSTRAP_DESC = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)Ljava/lang/invoke/CallSite;";
+	/**
+	 * the most strings a class holds itself, each one adds about 11 bytes to its unscramble method
+	 */
+	private static final int MAX_LOCAL_STRINGS = 4096;
+	private static final String FILL_NAME = "fill";
+	private static final String FILL_DESC = "([Ljava/lang/String;)V";
+	/**
+	 * the most strings a fill method stores, each one adds at most 8 bytes to it
+	 */
+	private static final int FILL_STRINGS = 4096;
+	/**
+	 * the most strings the owner of the shared pool, and each class holding the rest, has fill methods for. A string
+	 * takes 2 entries in the constant pool of its class, and a third once its index no longer fits in a short
+	 */
+	private static final int OWNER_STRINGS = 2 * FILL_STRINGS;
+	private static final int HOLDER_STRINGS = 4 * FILL_STRINGS;
 
-	private ClassNode unscrambleClass;
-	private List<String> stringList;
+	private Cache cache;
+	private int threads = 1;
+	private boolean dynamic;
+	private boolean local;
+	private Map<String, byte[]> files;
+	private Profile profile;
+	private Set<String> hot;
+	private final Random random = new Random();
+	private Pool global;
+	private Map<String, Pool> pools;
+
+	/**
+	 * @param cache state from the last run, to keep the shared pool the same, or null
+	 */
+	public void setCache(Cache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @param threads the number of threads to collect and replace constants on, 1 does it serially
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param dynamic whether to load constants through invokedynamic, where the class version allows it
+	 */
+	public void setDynamic(boolean dynamic) {
+		this.dynamic = dynamic;
+	}
+
+	/**
+	 * @param local whether classes keep their own strings, rather than all of them sharing one pool
+	 */
+	public void setLocal(boolean local) {
+		this.local = local;
+	}
+
+	/**
+	 * @param files the files to write the shared pool to as a resource, see {@link Obfuscator#getFiles()}, or null
+	 *              to build it in the static initializer of its owner
+	 */
+	public void setFiles(Map<String, byte[]> files) {
+		this.files = files;
+	}
+
+	/**
+	 * @param profile the methods to leave fast, or null to scramble every method
+	 */
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	/**
+	 * Writes the resource holding the shared pool of the last run again, for when the classes didn't change and so
+	 * the pool wasn't built
+	 */
+	public static void restoreResource(Cache cache, Map<String, byte[]> files) {
+		if (cache.getStringOwner() != null)
+			files.put(getResourceName(cache.getStringOwner()), toResource(cache.getStrings()));
+	}
 
 	@Override
 	public void transform(Map<String, ClassNode> classMap) {
-		stringList = new ArrayList<>();
-		do {
-			unscrambleClass = (ClassNode) classMap.values().toArray()[new Random().nextInt(classMap.size())];
-		} while ((unscrambleClass.access & Opcodes.ACC_INTERFACE) != 0);
-		// Build string list
-		log.debug("Building string list");
-		classMap.values().stream().flatMap(cn -> cn.methods.stream()).forEach(this::buildStringList);
-		Collections.shuffle(stringList);
+		List<ClassNode> owners = new ArrayList<>();
+		List<MethodNode> methods = new ArrayList<>();
+		for (ClassNode cn : classMap.values()) {
+			for (MethodNode mn : cn.methods) {
+				owners.add(cn);
+				methods.add(mn);
+			}
+		}
+		// Build string pools
+		log.debug("Building string pools");
+		List<List<String>> constants = new ArrayList<>(Collections.nCopies(methods.size(), null));
+		hot = profile == null ? Collections.emptySet() : profile.getHotMethods();
+		Parallel.forEach(threads, methods.size(), i -> {
+			MethodNode mn = methods.get(i);
+			constants.set(i, isKept(owners.get(i), mn) ? Collections.emptyList() : getStrings(mn));
+		});
+		Map<ClassNode, Set<String>> strings = new LinkedHashMap<>();
+		for (int i = 0; i < methods.size(); i++) {
+			if (!constants.get(i).isEmpty())
+				strings.computeIfAbsent(owners.get(i), cn -> new LinkedHashSet<>()).addAll(constants.get(i));
+		}
+		pools = new HashMap<>();
+		global = null;
+		if (!local || needsGlobal(strings)) {
+			global = createGlobal(classMap);
+		}
+		int reused = global == null ? 0 : global.strings.size();
+		for (Map.Entry<ClassNode, Set<String>> entry : strings.entrySet()) {
+			ClassNode cn = entry.getKey();
+			if (local && cn != getOwner(global) && canHold(cn, entry.getValue())) {
+				Pool pool = new Pool(cn, false);
+				pool.strings.addAll(entry.getValue());
+				pool.strings.shuffle(0, random);
+				pools.put(cn.name, pool);
+			} else {
+				global.strings.addAll(entry.getValue());
+			}
+		}
+		if (global != null)
+			global.strings.shuffle(reused, random);
+		// a pool only gets a bootstrap method if a class loads its strings through invokedynamic
+		for (ClassNode cn : strings.keySet()) {
+			if (isDynamic(cn))
+				getPool(cn).link();
+		}
+		if (cache != null) {
+			cache.setStringOwner(global == null ? null : global.owner.name);
+			cache.setStrings(global == null ? new ArrayList<>() : new ArrayList<>(global.strings.asList()));
+		}
 		// Replace LDC constants with calls to unscramble
 		log.debug("Scrambling LDC constants");
-		classMap.values().forEach(cn -> cn.methods.forEach(mn -> scramble(cn, mn)));
-		// Add unscrambling handler
-		log.debug("Creating {} field containing {} strings", FIELD_NAME, stringList.size());
-		unscrambleClass.visitField(ACC_PUBLIC | ACC_STATIC, FIELD_NAME, "[Ljava/lang/String;", null, null);
-		log.debug("Adding unscramble method to {}.{}{}", unscrambleClass.name, CALL_NAME, CALL_DESC);
-		createUnscramble();
-		try {
-			createStaticConstructor(unscrambleClass);
-		} catch (Exception ex) {
-			log.warn("Failed to transform strings", ex);
+		Parallel.forEach(threads, methods.size(), i -> scramble(owners.get(i), methods.get(i)));
+		// Add unscrambling handlers
+		if (global != null) {
+			ClassNode owner = global.owner;
+			owner.visitField(ACC_PRIVATE | ACC_STATIC, CACHE_NAME, "[Ljava/lang/String;", null, null);
+			log.debug("Adding unscramble method to {}.{}{}", owner.name, CALL_NAME, CALL_DESC);
+			// the loader finds the resource through a class constant
+			if (files != null && isVersion(owner, V1_5)) {
+				String name = getResourceName(owner.name);
+				byte[] data = toResource(global.strings.asList());
+				log.debug("Writing {} strings to resource {}", global.strings.size(), name);
+				files.put(name, data);
+				owner.visitField(ACC_PRIVATE | ACC_STATIC, DATA_NAME, "Ljava/nio/ByteBuffer;", null, null);
+				createResourceUnscramble(global);
+				createResourceLoader(global, name, data.length);
+			} else {
+				log.debug("Creating {} field containing {} strings", FIELD_NAME, global.strings.size());
+				owner.visitField(ACC_PUBLIC | ACC_STATIC, FIELD_NAME, "[Ljava/lang/String;", null, null);
+				createUnscramble(global);
+				createStaticConstructor(global, classMap);
+			}
+			createBootstrap(global);
+		}
+		log.debug("Adding string pools to {} classes", pools.size());
+		for (Pool pool : pools.values()) {
+			pool.owner.visitField(ACC_PRIVATE | ACC_STATIC, CACHE_NAME, "[Ljava/lang/String;", null, null);
+			createLocalUnscramble(pool);
+			createBootstrap(pool);
+		}
+	}
+
+	private boolean needsGlobal(Map<ClassNode, Set<String>> strings) {
+		for (Map.Entry<ClassNode, Set<String>> entry : strings.entrySet()) {
+			if (!canHold(entry.getKey(), entry.getValue()))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean canHold(ClassNode cn, Set<String> strings) {
+		return (cn.access & ACC_INTERFACE) == 0 && strings.size() <= MAX_LOCAL_STRINGS;
+	}
+
+	private static ClassNode getOwner(Pool pool) {
+		return pool == null ? null : pool.owner;
+	}
+
+	/**
+	 * @return the pool shared between classes, carried over from the last run if there is one
+	 */
+	private Pool createGlobal(Map<String, ClassNode> classMap) {
+		ClassNode owner = cache != null && cache.getStringOwner() != null ? classMap.get(cache.getStringOwner()) : null;
+		if (owner != null && (owner.access & ACC_INTERFACE) == 0) {
+			Pool pool = new Pool(owner, true);
+			pool.strings.addAll(cache.getStrings());
+			return pool;
 		}
+		// initializing a class first initializes its super classes, whose static initializers may need strings from
+		// the pool before the owner has filled it in, so prefer classes without any in the program
+		List<ClassNode> candidates = new ArrayList<>();
+		List<ClassNode> fallback = new ArrayList<>();
+		for (ClassNode cn : classMap.values()) {
+			if ((cn.access & ACC_INTERFACE) != 0)
+				continue;
+			fallback.add(cn);
+			if (!classMap.containsKey(cn.superName) && !hasProgramInterface(cn, classMap))
+				candidates.add(cn);
+		}
+		if (candidates.isEmpty())
+			candidates = fallback;
+		return new Pool(candidates.get(random.nextInt(candidates.size())), true);
+	}
+
+	private static boolean hasProgramInterface(ClassNode cn, Map<String, ClassNode> classMap) {
+		for (String itf : cn.interfaces)
+			if (classMap.containsKey(itf))
+				return true;
+		return false;
 	}
 
-	private void buildStringList(MethodNode mn) {
+	/**
+	 * @return the distinct string constants of the method, in the order they first appear
+	 */
+	private List<String> getStrings(MethodNode mn) {
+		Set<String> strings = new LinkedHashSet<>();
 		BytecodeHelper.forEach(mn.instructions, LdcInsnNode.class, ldc -> {
-			if (ldc.cst instanceof String && !stringList.contains(ldc.cst)) {
-				stringList.add((String) ldc.cst);
+			if (ldc.cst instanceof String) {
+				strings.add((String) ldc.cst);
 			}
 		});
+		return new ArrayList<>(strings);
+	}
+
+	/**
+	 * @return whether the method is hot and can't use invokedynamic, and so keeps its constants
+	 */
+	private boolean isKept(ClassNode cn, MethodNode mn) {
+		return !isDynamic(cn) && hot.contains(cn.name + "." + mn.name + mn.desc);
+	}
+
+	/**
+	 * @return whether the class loads its strings through invokedynamic, which needs version 51 to link
+	 */
+	private boolean isDynamic(ClassNode cn) {
+		return dynamic && isVersion(cn, V1_7);
+	}
+
+	private Pool getPool(ClassNode cn) {
+		Pool pool = pools.get(cn.name);
+		return pool != null ? pool : global;
 	}
 
 	private void scramble(ClassNode cn, MethodNode mn) {
+		Pool pool = getPool(cn);
+		if (pool == null)
+			return;
+		boolean indy = isDynamic(cn);
+		if (isKept(cn, mn)) {
+			log.debug("Keeping string constants of hot method {}.{}{}", cn.name, mn.name, mn.desc);
+			return;
+		}
 		List<LdcInsnNode> ldcNodes = new LinkedList<>();
 		BytecodeHelper.forEach(mn.instructions, LdcInsnNode.class, ldcNodes::add);
 		for (LdcInsnNode node : ldcNodes) {
 			if (node.cst instanceof String) {
-				int index = stringList.indexOf(node.cst);
+				int index = pool.strings.indexOf((String) node.cst);
 				if (index == -1)
 					continue;
 				log.debug("Replacing string constant \"{}\" at {}.{}{}", node.cst, cn.name, mn.name, mn.desc);
-				MethodInsnNode call = new MethodInsnNode(Opcodes.INVOKESTATIC, unscrambleClass.name, CALL_NAME, CALL_DESC, false);
+				if (indy) {
+					mn.instructions.set(node, new InvokeDynamicInsnNode(DYNAMIC_NAME, "()Ljava/lang/String;", pool.bootstrap, index));
+					continue;
+				}
+				MethodInsnNode call = new MethodInsnNode(Opcodes.INVOKESTATIC, pool.owner.name, CALL_NAME, CALL_DESC, false);
 				mn.instructions.set(node, call);
 				mn.instructions.insertBefore(call, BytecodeHelper.newIntegerNode(index));
 			}
 		}
 	}
-	
-	private void createUnscramble() {
-		MethodVisitor mv = unscrambleClass.visitMethod(ACC_PUBLIC | ACC_STATIC, CALL_NAME, CALL_DESC, null, null);
+
+	private static boolean isVersion(ClassNode cn, int version) {
+		return (cn.version & 0xFFFF) >= version;
+	}
+
+	private static String encode(String string) {
+		return Base64.getEncoder().encodeToString(string.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String getResourceName(String owner) {
+		return Integer.toHexString(owner.hashCode());
+	}
+
+	/**
+	 * @return the strings laid out as a resource, see {@link ScrambleStrings}
+	 */
+	private static byte[] toResource(List<String> strings) {
+		byte[][] encoded = new byte[strings.size()][];
+		int header = 4 + (strings.size() + 1) * 4;
+		int length = header;
+		for (int i = 0; i < encoded.length; i++) {
+			encoded[i] = encode(strings.get(i)).getBytes(StandardCharsets.ISO_8859_1);
+			length += encoded[i].length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(encoded.length);
+		int offset = header;
+		for (byte[] string : encoded) {
+			buffer.putInt(offset);
+			offset += string.length;
+		}
+		buffer.putInt(offset);
+		for (byte[] string : encoded)
+			buffer.put(string);
+		return buffer.array();
+	}
+
+	private void createBootstrap(Pool pool) {
+		if (pool.bootstrap == null)
+			return;
+		ClassNode owner = pool.owner;
+		log.debug("Adding bootstrap method to {}.{}{}", owner.name, BOOTSTRAP_NAME, BOOTSTRAP_DESC);
+		MethodVisitor mv = owner.visitMethod(pool.access, BOOTSTRAP_NAME, BOOTSTRAP_DESC, null, null);
 		mv.visitCode();
+		// return new ConstantCallSite(MethodHandles.constant(String.class, unscramble(i)));
+		mv.visitTypeInsn(NEW, "java/lang/invoke/ConstantCallSite");
+		mv.visitInsn(DUP);
+		mv.visitLdcInsn(Type.getType(String.class));
+		mv.visitVarInsn(ILOAD, 3);
+		mv.visitMethodInsn(INVOKESTATIC, owner.name, CALL_NAME, CALL_DESC, false);
+		mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles", "constant",
+				"(Ljava/lang/Class;Ljava/lang/Object;)Ljava/lang/invoke/MethodHandle;", false);
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/invoke/ConstantCallSite", "<init>", "(Ljava/lang/invoke/MethodHandle;)V", false);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	private void createUnscramble(Pool pool) {
+		ClassNode owner = pool.owner;
+		MethodVisitor mv = owner.visitMethod(pool.access, CALL_NAME, CALL_DESC, null, null);
+		mv.visitCode();
+		Label cached = new Label();
+		// String s = string_cache[i]; if (s != null) return s;
+		mv.visitFieldInsn(GETSTATIC, owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitInsn(AALOAD);
+		mv.visitVarInsn(ASTORE, 1);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitJumpInsn(IFNONNULL, cached);
+		// s = new String(Base64.getDecoder().decode(string_store[i]), StandardCharsets.UTF_8);
 		mv.visitTypeInsn(NEW, "java/lang/String");
 		mv.visitInsn(DUP);
 		mv.visitMethodInsn(INVOKESTATIC, "java/util/Base64", "getDecoder", "()Ljava/util/Base64$Decoder;", false);
-		mv.visitFieldInsn(GETSTATIC, unscrambleClass.name, FIELD_NAME, "[Ljava/lang/String;");
+		mv.visitFieldInsn(GETSTATIC, owner.name, FIELD_NAME, "[Ljava/lang/String;");
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitInsn(AALOAD);
+		visitDecode(mv);
+		mv.visitVarInsn(ASTORE, 1);
+		// string_cache[i] = s;
+		mv.visitFieldInsn(GETSTATIC, owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitInsn(AASTORE);
+		mv.visitLabel(cached);
+		// frames aren't computed when writing, and are only read from version 50 on
+		if (isVersion(owner, V1_6))
+			mv.visitFrame(F_APPEND, 1, new Object[]{"java/lang/String"}, 0, null);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Creates the unscramble method of a class holding its own strings. The cache array is created on the first
+	 * call, and the encoded strings are constants picked by a switch, so nothing is set up in the static initializer.
+	 * Threads racing to create the cache may each use their own array for a while, which only costs decoding a
+	 * string again.
+	 */
+	private void createLocalUnscramble(Pool pool) {
+		ClassNode owner = pool.owner;
+		int size = pool.strings.size();
+		boolean frames = isVersion(owner, V1_6);
+		Object[] locals = {INTEGER, "[Ljava/lang/String;", "java/lang/String"};
+		MethodVisitor mv = owner.visitMethod(pool.access, CALL_NAME, CALL_DESC, null, null);
+		mv.visitCode();
+		Label created = new Label();
+		Label decode = new Label();
+		Label cached = new Label();
+		// String[] cache = string_cache; if (cache == null) string_cache = cache = new String[size];
+		mv.visitFieldInsn(GETSTATIC, owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		mv.visitVarInsn(ASTORE, 1);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitJumpInsn(IFNONNULL, created);
+		BytecodeHelper.newIntegerNode(size).accept(mv);
+		mv.visitTypeInsn(ANEWARRAY, "java/lang/String");
+		mv.visitVarInsn(ASTORE, 1);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitFieldInsn(PUTSTATIC, owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		mv.visitLabel(created);
+		if (frames)
+			mv.visitFrame(F_FULL, 2, locals, 0, new Object[0]);
+		// String s = cache[i]; if (s != null) return s;
+		mv.visitVarInsn(ALOAD, 1);
 		mv.visitVarInsn(ILOAD, 0);
 		mv.visitInsn(AALOAD);
+		mv.visitVarInsn(ASTORE, 2);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitJumpInsn(IFNONNULL, cached);
+		// switch (i) { case 0: s = "..."; break; ... }
+		Label[] cases = new Label[size];
+		for (int i = 0; i < size; i++)
+			cases[i] = new Label();
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitTableSwitchInsn(0, size - 1, cases[size - 1], cases);
+		for (int i = 0; i < size; i++) {
+			mv.visitLabel(cases[i]);
+			if (frames)
+				mv.visitFrame(F_FULL, 3, locals, 0, new Object[0]);
+			mv.visitLdcInsn(encode(pool.strings.get(i)));
+			mv.visitVarInsn(ASTORE, 2);
+			mv.visitJumpInsn(GOTO, decode);
+		}
+		// s = new String(Base64.getDecoder().decode(s), StandardCharsets.UTF_8);
+		mv.visitLabel(decode);
+		if (frames)
+			mv.visitFrame(F_FULL, 3, locals, 0, new Object[0]);
+		mv.visitTypeInsn(NEW, "java/lang/String");
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESTATIC, "java/util/Base64", "getDecoder", "()Ljava/util/Base64$Decoder;", false);
+		mv.visitVarInsn(ALOAD, 2);
+		visitDecode(mv);
+		mv.visitVarInsn(ASTORE, 2);
+		// cache[i] = s;
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitInsn(AASTORE);
+		mv.visitLabel(cached);
+		if (frames)
+			mv.visitFrame(F_FULL, 3, locals, 0, new Object[0]);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitInsn(ARETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * Finishes decoding the string, with a new String and the decoder on top of the stack, followed by the encoded
+	 * string
+	 */
+	private static void visitDecode(MethodVisitor mv) {
 		mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Base64$Decoder", "decode", "(Ljava/lang/String;)[B", false);
-		mv.visitLdcInsn("UTF-8");
-		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>", "([BLjava/lang/String;)V", false);
+		mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "UTF_8", "Ljava/nio/charset/Charset;");
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>", "([BLjava/nio/charset/Charset;)V", false);
+	}
+
+	/**
+	 * Creates the unscramble method of a pool kept in a resource, which decodes the string's slice of the buffer
+	 */
+	private void createResourceUnscramble(Pool pool) {
+		ClassNode owner = pool.owner;
+		MethodVisitor mv = owner.visitMethod(pool.access, CALL_NAME, CALL_DESC, null, null);
+		mv.visitCode();
+		Label cached = new Label();
+		// String s = string_cache[i]; if (s != null) return s;
+		mv.visitFieldInsn(GETSTATIC, owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitInsn(AALOAD);
+		mv.visitVarInsn(ASTORE, 1);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitJumpInsn(IFNONNULL, cached);
+		// ByteBuffer data = string_data.duplicate(); data.position(data.getInt(i * 4 + 4)); data.limit(data.getInt(i * 4 + 8));
+		mv.visitFieldInsn(GETSTATIC, owner.name, DATA_NAME, "Ljava/nio/ByteBuffer;");
+		mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "duplicate", "()Ljava/nio/ByteBuffer;", false);
+		mv.visitVarInsn(ASTORE, 2);
+		for (int i = 0; i < 2; i++) {
+			mv.visitVarInsn(ALOAD, 2);
+			mv.visitVarInsn(ALOAD, 2);
+			mv.visitVarInsn(ILOAD, 0);
+			mv.visitInsn(ICONST_2);
+			mv.visitInsn(ISHL);
+			BytecodeHelper.newIntegerNode(i == 0 ? 4 : 8).accept(mv);
+			mv.visitInsn(IADD);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "getInt", "(I)I", false);
+			mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/Buffer", i == 0 ? "position" : "limit", "(I)Ljava/nio/Buffer;", false);
+			mv.visitInsn(POP);
+		}
+		// ByteBuffer bytes = Base64.getDecoder().decode(data);
+		// s = new String(bytes.array(), 0, bytes.limit(), StandardCharsets.UTF_8);
+		mv.visitTypeInsn(NEW, "java/lang/String");
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKESTATIC, "java/util/Base64", "getDecoder", "()Ljava/util/Base64$Decoder;", false);
+		mv.visitVarInsn(ALOAD, 2);
+		mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Base64$Decoder", "decode", "(Ljava/nio/ByteBuffer;)Ljava/nio/ByteBuffer;", false);
+		mv.visitInsn(DUP);
+		mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/ByteBuffer", "array", "()[B", false);
+		mv.visitInsn(SWAP);
+		mv.visitMethodInsn(INVOKEVIRTUAL, "java/nio/Buffer", "limit", "()I", false);
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(SWAP);
+		mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "UTF_8", "Ljava/nio/charset/Charset;");
+		mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>", "([BIILjava/nio/charset/Charset;)V", false);
+		mv.visitVarInsn(ASTORE, 1);
+		// string_cache[i] = s;
+		mv.visitFieldInsn(GETSTATIC, owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		mv.visitVarInsn(ILOAD, 0);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitInsn(AASTORE);
+		mv.visitLabel(cached);
+		if (isVersion(owner, V1_6))
+			mv.visitFrame(F_FULL, 2, new Object[]{INTEGER, "java/lang/String"}, 0, new Object[0]);
+		mv.visitVarInsn(ALOAD, 1);
 		mv.visitInsn(ARETURN);
 		mv.visitMaxs(0, 0);
 		mv.visitEnd();
 	}
 
-	private void createStaticConstructor(ClassNode owner) throws UnsupportedEncodingException {
+	/**
+	 * Reads the resource into string_data ahead of the original static initializer, without using any locals
+	 */
+	private void createResourceLoader(Pool pool, String name, int length) {
+		ClassNode owner = pool.owner;
+		MethodNode original = BytecodeHelper.getMethod(owner, "<clinit>", "()V");
+		MethodVisitor mv = owner.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+		InstructionAdapter builder = new InstructionAdapter(mv);
+		// byte[] data = new byte[length];
+		builder.iconst(length);
+		builder.newarray(Type.BYTE_TYPE);
+		builder.dup();
+		// DataInputStream in = new DataInputStream(Owner.class.getResourceAsStream("/name"));
+		builder.anew(Type.getObjectType("java/io/DataInputStream"));
+		builder.dup();
+		builder.aconst(Type.getObjectType(owner.name));
+		builder.aconst("/" + name);
+		builder.invokevirtual("java/lang/Class", "getResourceAsStream", "(Ljava/lang/String;)Ljava/io/InputStream;", false);
+		builder.invokespecial("java/io/DataInputStream", "<init>", "(Ljava/io/InputStream;)V", false);
+		// in.readFully(data); in.close();
+		builder.dupX1();
+		builder.swap();
+		builder.invokevirtual("java/io/DataInputStream", "readFully", "([B)V", false);
+		builder.invokevirtual("java/io/DataInputStream", "close", "()V", false);
+		// string_data = ByteBuffer.wrap(data); string_cache = new String[size];
+		builder.invokestatic("java/nio/ByteBuffer", "wrap", "([B)Ljava/nio/ByteBuffer;", false);
+		builder.putstatic(owner.name, DATA_NAME, "Ljava/nio/ByteBuffer;");
+		builder.iconst(pool.strings.size());
+		builder.newarray(Type.getType(String.class));
+		builder.putstatic(owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		finishStaticConstructor(owner, original, builder);
+	}
+
+	/**
+	 * Creates the static initializer filling in the shared pool, and the fill methods it calls. Classes created to
+	 * hold the strings that don't fit in the owner are added to the class map.
+	 */
+	private void createStaticConstructor(Pool pool, Map<String, ClassNode> classMap) {
+		ClassNode owner = pool.owner;
 		MethodNode original = BytecodeHelper.getMethod(owner, "<clinit>", "()V");
 		MethodVisitor mv = owner.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
 		// generate instructions
 		InstructionAdapter builder = new InstructionAdapter(mv);
-		builder.iconst(stringList.size());
+		builder.iconst(pool.strings.size());
 		builder.newarray(Type.getType(String.class));
-		for (int i = 0; i < stringList.size(); i++) {
+		ClassNode holder = owner;
+		int access = ACC_PRIVATE | ACC_STATIC;
+		int limit = OWNER_STRINGS;
+		int held = 0;
+		for (int from = 0; from < pool.strings.size(); from += FILL_STRINGS) {
+			if (held == limit) {
+				holder = createHolder(owner, classMap);
+				access = ACC_PUBLIC | ACC_STATIC;
+				limit = HOLDER_STRINGS;
+				held = 0;
+			}
+			int to = Math.min(from + FILL_STRINGS, pool.strings.size());
+			String name = FILL_NAME + held / FILL_STRINGS;
+			createFill(pool, holder, access, name, from, to);
+			held += to - from;
 			builder.dup();
+			builder.invokestatic(holder.name, name, FILL_DESC, false);
+		}
+		builder.putstatic(owner.name, FIELD_NAME, "[Ljava/lang/String;");
+		builder.iconst(pool.strings.size());
+		builder.newarray(Type.getType(String.class));
+		builder.putstatic(owner.name, CACHE_NAME, "[Ljava/lang/String;");
+		finishStaticConstructor(owner, original, builder);
+	}
+
+	/**
+	 * Creates a method storing the strings of the pool from one index up to another into the array it is given
+	 */
+	private static void createFill(Pool pool, ClassNode cn, int access, String name, int from, int to) {
+		MethodVisitor mv = cn.visitMethod(access, name, FILL_DESC, null, null);
+		mv.visitCode();
+		InstructionAdapter builder = new InstructionAdapter(mv);
+		for (int i = from; i < to; i++) {
+			builder.load(0, InstructionAdapter.OBJECT_TYPE);
 			builder.iconst(i);
-			builder.aconst(Base64.getEncoder().encodeToString(stringList.get(i).getBytes("UTF-8")));
+			builder.aconst(encode(pool.strings.get(i)));
 			builder.astore(InstructionAdapter.OBJECT_TYPE);
 		}
-		builder.putstatic(unscrambleClass.name, FIELD_NAME, "[Ljava/lang/String;");
+		builder.areturn(Type.VOID_TYPE);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/**
+	 * @return a new class next to the owner of the shared pool, without a static initializer so that calling into it
+	 * from the owner's doesn't initialize anything else
+	 */
+	private static ClassNode createHolder(ClassNode owner, Map<String, ClassNode> classMap) {
+		String name;
+		int i = 0;
+		do {
+			name = owner.name + "$" + FIELD_NAME + i++;
+		} while (classMap.containsKey(name));
+		log.debug("Creating class {} to hold more of the shared pool", name);
+		ClassNode holder = new ClassNode();
+		holder.visit(owner.version, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, "java/lang/Object", new String[0]);
+		classMap.put(name, holder);
+		return holder;
+	}
+
+	private static void finishStaticConstructor(ClassNode owner, MethodNode original, InstructionAdapter builder) {
 		// merge with original if it exists
 		if (original != null) {
 			// original should already end with RETURN
@@ -126,4 +702,38 @@ public class ScrambleStrings implements Transformer {
 		}
 	}
 
+	/**
+	 * The strings held by one class, and how they are loaded
+	 */
+	private class Pool {
+
+		private final ClassNode owner;
+		private final StringPool strings = new StringPool();
+		private final int access;
+		private Handle bootstrap;
+
+		/**
+		 * @param shared whether other classes load strings from the pool, otherwise its methods are private
+		 */
+		Pool(ClassNode owner, boolean shared) {
+			this.owner = owner;
+			this.access = (shared ? ACC_PUBLIC : ACC_PRIVATE) | ACC_STATIC;
+		}
+
+		/**
+		 * Gives the pool a bootstrap method for invokedynamic call sites
+		 */
+		void link() {
+			if (bootstrap != null)
+				return;
+			// the bootstrap method loads a class constant, and only linking needs version 51 on the calling side
+			if (!isVersion(owner, V1_5)) {
+				log.debug("Raising the version of {} to 49, for its bootstrap method", owner.name);
+				owner.version = V1_5;
+			}
+			bootstrap = new Handle(H_INVOKESTATIC, owner.name, BOOTSTRAP_NAME, BOOTSTRAP_DESC, false);
+		}
+
+	}
+
 }
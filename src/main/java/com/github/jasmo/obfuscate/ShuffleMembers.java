@@ -7,47 +7,57 @@
 
 package com.github.jasmo.obfuscate;
 
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
 
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
-public class ShuffleMembers implements Transformer {
+public class ShuffleMembers implements ClassTransformer {
 
 	@Override
-	public void transform(Map<String, ClassNode> classMap) {
-		classMap.values().forEach(c -> {
-			shuffle(c.fields);
-			shuffle(c.methods);
-			shuffle(c.innerClasses);
-			shuffle(c.interfaces);
-			shuffle(c.attrs);
-			shuffle(c.invisibleAnnotations);
-			shuffle(c.visibleAnnotations);
-			shuffle(c.invisibleTypeAnnotations);
-			shuffle(c.visibleTypeAnnotations);
-			c.fields.forEach(f -> {
-				shuffle(f.attrs);
-				shuffle(f.invisibleAnnotations);
-				shuffle(f.visibleAnnotations);
-				shuffle(f.invisibleTypeAnnotations);
-				shuffle(f.visibleTypeAnnotations);
-			});
-			c.methods.forEach(m -> {
-				shuffle(m.attrs);
-				shuffle(m.invisibleAnnotations);
-				shuffle(m.visibleAnnotations);
-				shuffle(m.invisibleTypeAnnotations);
-				shuffle(m.visibleTypeAnnotations);
-				shuffle(m.exceptions);
-				shuffle(m.invisibleLocalVariableAnnotations);
-				shuffle(m.visibleLocalVariableAnnotations);
-				shuffle(m.localVariables);
-				shuffle(m.parameters);
-			});
-			c.innerClasses.clear();
+	public ClassVisitor transform(ClassVisitor next) {
+		// members can only be reordered once the whole class has been seen
+		return new ClassNode(Opcodes.ASM9) {
+			@Override
+			public void visitEnd() {
+				shuffle(this);
+				accept(next);
+			}
+		};
+	}
+
+	private void shuffle(ClassNode c) {
+		shuffle(c.fields);
+		shuffle(c.methods);
+		shuffle(c.innerClasses);
+		shuffle(c.interfaces);
+		shuffle(c.attrs);
+		shuffle(c.invisibleAnnotations);
+		shuffle(c.visibleAnnotations);
+		shuffle(c.invisibleTypeAnnotations);
+		shuffle(c.visibleTypeAnnotations);
+		c.fields.forEach(f -> {
+			shuffle(f.attrs);
+			shuffle(f.invisibleAnnotations);
+			shuffle(f.visibleAnnotations);
+			shuffle(f.invisibleTypeAnnotations);
+			shuffle(f.visibleTypeAnnotations);
+		});
+		c.methods.forEach(m -> {
+			shuffle(m.attrs);
+			shuffle(m.invisibleAnnotations);
+			shuffle(m.visibleAnnotations);
+			shuffle(m.invisibleTypeAnnotations);
+			shuffle(m.visibleTypeAnnotations);
+			shuffle(m.exceptions);
+			shuffle(m.invisibleLocalVariableAnnotations);
+			shuffle(m.visibleLocalVariableAnnotations);
+			shuffle(m.localVariables);
+			shuffle(m.parameters);
 		});
+		c.innerClasses.clear();
 	}
 
 	private void shuffle(List<?> list) {
@@ -0,0 +1,248 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.obfuscate;
+
+import com.github.jasmo.util.IdTable;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Numbers every class, field and method of the program, so that transformers can keep track of them in arrays.
+ * <p>
+ * Ids are dense and start at 0, separately for classes, fields and methods. The members of a class have
+ * consecutive ids, and every member knows the id of its owner. Method names and descriptors are interned as
+ * signatures, so that finding the method a class declares with a given signature is a binary search over the
+ * methods of that class. Class names and signatures are looked up in {@link IdTable}s, so nothing is boxed.
+ * <p>
+ * {@link Obfuscator} shares one table between transformers, the way it does the {@link Hierarchy}, and
+ * {@link #invalidate() invalidates} it when a transform changes classes. Transformers {@link #update(Map) update} it
+ * with the classes they are handed; it is only built again, when it is next used, if those were parsed again or
+ * changed since. Signatures are never forgotten, so a signature keeps its id for as long as the table is around,
+ * and can stand in for a method's name and descriptor in {@link Mappings}.
+ */
+public class SymbolTable {
+
+	private ClassNode[] classes = new ClassNode[0];
+	/**
+	 * the names of the classes, their ids matching {@link #classes}
+	 */
+	private final IdTable classIds = new IdTable();
+	/**
+	 * first field and method of every class, the extra last element holding the number of fields and methods
+	 */
+	private int[] fieldStart = new int[1];
+	private int[] methodStart = new int[1];
+	private FieldNode[] fields = new FieldNode[0];
+	private int[] fieldOwners = new int[0];
+	private MethodNode[] methods = new MethodNode[0];
+	private int[] methodOwners = new int[0];
+	private int[] methodSignatures = new int[0];
+	/**
+	 * the methods of every class, ordered by signature
+	 */
+	private int[] methodsBySignature = new int[0];
+	/**
+	 * method name and descriptor of every signature
+	 */
+	private final IdTable signatures = new IdTable();
+	/**
+	 * the classes of the last update, and whether the table has been built from them
+	 */
+	private Map<String, ClassNode> source = Collections.emptyMap();
+	private boolean stale;
+
+	public SymbolTable() {
+	}
+
+	public SymbolTable(Map<String, ClassNode> classMap) {
+		update(classMap);
+	}
+
+	/**
+	 * Brings the table in line with the given classes. Classes that are the same objects as before are taken to be
+	 * unchanged, unless the table was {@link #invalidate() invalidated}.
+	 */
+	public void update(Map<String, ClassNode> classMap) {
+		source = classMap;
+		if (stale || classMap.size() != classes.length) {
+			stale = true;
+			return;
+		}
+		for (ClassNode c : classMap.values()) {
+			int id = classIds.get(c.name);
+			if (id == -1 || classes[id] != c) {
+				stale = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Marks the classes as changed in place, so that the table is built again before it is next used
+	 */
+	public void invalidate() {
+		stale = true;
+	}
+
+	private void ensure() {
+		if (stale) {
+			build(source);
+			stale = false;
+		}
+	}
+
+	private void build(Map<String, ClassNode> classMap) {
+		classes = classMap.values().toArray(new ClassNode[classMap.size()]);
+		// ordered by name, so that ids don't depend on hash ordering
+		Arrays.sort(classes, Comparator.comparing(c -> c.name));
+		classIds.clear();
+		fieldStart = new int[classes.length + 1];
+		methodStart = new int[classes.length + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classIds.add(classes[i].name);
+			fieldStart[i + 1] = fieldStart[i] + classes[i].fields.size();
+			methodStart[i + 1] = methodStart[i] + classes[i].methods.size();
+		}
+		fields = new FieldNode[fieldStart[classes.length]];
+		fieldOwners = new int[fields.length];
+		methods = new MethodNode[methodStart[classes.length]];
+		methodOwners = new int[methods.length];
+		methodSignatures = new int[methods.length];
+		methodsBySignature = new int[methods.length];
+		for (int i = 0; i < classes.length; i++) {
+			int f = fieldStart[i];
+			for (FieldNode field : classes[i].fields) {
+				fields[f] = field;
+				fieldOwners[f++] = i;
+			}
+			int m = methodStart[i];
+			for (MethodNode method : classes[i].methods) {
+				methods[m] = method;
+				methodOwners[m] = i;
+				methodSignatures[m++] = signatures.add(method.name, method.desc);
+			}
+			sortBySignature(methodStart[i], methodStart[i + 1]);
+		}
+	}
+
+	private void sortBySignature(int from, int to) {
+		// insertion sort, classes don't have many methods
+		for (int i = from; i < to; i++) {
+			int m = i;
+			int j = i;
+			while (j > from && methodSignatures[methodsBySignature[j - 1]] > methodSignatures[m]) {
+				methodsBySignature[j] = methodsBySignature[j - 1];
+				j--;
+			}
+			methodsBySignature[j] = m;
+		}
+	}
+
+	public int getClassCount() {
+		ensure();
+		return classes.length;
+	}
+
+	public int getFieldCount() {
+		ensure();
+		return fields.length;
+	}
+
+	public int getMethodCount() {
+		ensure();
+		return methods.length;
+	}
+
+	/**
+	 * @return the id of the given class, or -1 if it isn't part of the program
+	 */
+	public int getClassId(String name) {
+		ensure();
+		return classIds.get(name);
+	}
+
+	public ClassNode getClass(int id) {
+		ensure();
+		return classes[id];
+	}
+
+	public FieldNode getField(int id) {
+		ensure();
+		return fields[id];
+	}
+
+	public int getFieldOwner(int id) {
+		ensure();
+		return fieldOwners[id];
+	}
+
+	public MethodNode getMethod(int id) {
+		ensure();
+		return methods[id];
+	}
+
+	public int getMethodOwner(int id) {
+		ensure();
+		return methodOwners[id];
+	}
+
+	public int getMethodSignature(int id) {
+		ensure();
+		return methodSignatures[id];
+	}
+
+	/**
+	 * @return the id of the signature, or -1 if no method the table was built from has had it. Safe to call from
+	 * multiple threads, as long as the table isn't being built at the same time
+	 */
+	public int getSignature(String name, String desc) {
+		return signatures.get(name, desc);
+	}
+
+	public String getSignatureName(int signature) {
+		return signatures.getFirst(signature);
+	}
+
+	public String getSignatureDesc(int signature) {
+		return signatures.getSecond(signature);
+	}
+
+	/**
+	 * @return the methods the class declares, ordered by signature
+	 */
+	public int[] getMethods(int classId) {
+		ensure();
+		return Arrays.copyOfRange(methodsBySignature, methodStart[classId], methodStart[classId + 1]);
+	}
+
+	/**
+	 * @return the id of the method the class declares with the given signature, or -1 if it has none
+	 */
+	public int getMethod(int classId, int signature) {
+		ensure();
+		int low = methodStart[classId];
+		int high = methodStart[classId + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int m = methodsBySignature[mid];
+			if (methodSignatures[m] < signature)
+				low = mid + 1;
+			else if (methodSignatures[m] > signature)
+				high = mid - 1;
+			else
+				return m;
+		}
+		return -1;
+	}
+
+}
@@ -13,9 +13,44 @@ import java.util.*;
 
 /**
  * @author Caleb Whiting
+ *
+ * Transforms the classes of the program, handed over as a map of class name to class. The map is kept between
+ * transformers, and only the classes a transformer gets out of, puts into or removes from it are looked at again
+ * afterwards: so a class that is added or removed is put or removed under its name, and a class that is changed in
+ * place, including being renamed, must have been got out of the map rather than kept from an earlier transform.
  */
 public interface Transformer {
 
 	void transform(Map<String, ClassNode> classMap);
 
+	/**
+	 * @return how much of each class this transformer needs to see, see {@link Level}
+	 */
+	default Level level() {
+		return Level.CODE;
+	}
+
+	/**
+	 * How much of each class is parsed before it is handed to a transformer. Anything below {@link #CODE} is
+	 * merged back into the full class after the transform, so those transformers must change nodes in place.
+	 */
+	enum Level {
+
+		/**
+		 * Class declaration only (name, super class, interfaces, access, annotations etc), no fields or methods
+		 */
+		HEADER,
+
+		/**
+		 * Class declaration, fields and method declarations, without method bodies
+		 */
+		MEMBERS,
+
+		/**
+		 * The complete class
+		 */
+		CODE
+
+	}
+
 }
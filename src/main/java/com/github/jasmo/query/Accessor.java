@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.query;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Reads one query key from nodes, through method handles that are looked up once per node class and key.
+ * <p>
+ * A key resolves to the public field of that name, else to its getter (getKey or isKey, getPrevious for prev),
+ * else to the non-public field, the same way {@link com.github.jasmo.util.QueryGenerator} resolves them.
+ */
+class Accessor extends ClassValue<Accessor.Getter> {
+
+	private static final ConcurrentMap<String, Accessor> accessors = new ConcurrentHashMap<>();
+
+	private static final MethodType OBJECT = MethodType.methodType(Object.class, Object.class);
+	private static final MethodType INT = MethodType.methodType(int.class, Object.class);
+
+	private static final Getter MISSING = new Getter(MethodHandles.dropArguments(
+			MethodHandles.constant(Object.class, null), 0, Object.class), null);
+
+	private final String key;
+
+	private Accessor(String key) {
+		this.key = key;
+	}
+
+	static Accessor of(String key) {
+		Accessor accessor = accessors.get(key);
+		if (accessor == null) {
+			accessor = new Accessor(key);
+			Accessor previous = accessors.putIfAbsent(key, accessor);
+			if (previous != null)
+				accessor = previous;
+		}
+		return accessor;
+	}
+
+	/**
+	 * @return the value of the key for the given node, or null if nodes of its type don't have the key
+	 */
+	Object get(Object node) {
+		try {
+			return (Object) get(node.getClass()).object.invokeExact(node);
+		} catch (Throwable t) {
+			throw rethrow(t);
+		}
+	}
+
+	@Override
+	protected Getter computeValue(Class<?> type) {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			MethodHandle handle = find(lookup, type);
+			if (handle == null)
+				return MISSING;
+			MethodHandle object = handle.asType(OBJECT);
+			MethodHandle integer = handle.type().returnType() == int.class ? handle.asType(INT) : null;
+			return new Getter(object, integer);
+		} catch (IllegalAccessException e) {
+			return MISSING;
+		}
+	}
+
+	private MethodHandle find(MethodHandles.Lookup lookup, Class<?> type) throws IllegalAccessException {
+		Field field = getField(type);
+		if (field != null && Modifier.isPublic(field.getModifiers()) && Modifier.isPublic(field.getDeclaringClass().getModifiers()))
+			return lookup.unreflectGetter(field);
+		String name = key.equals("prev") ? "previous" : key;
+		name = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		for (String prefix : new String[]{"get", "is"}) {
+			try {
+				Method method = type.getMethod(prefix + name);
+				if (Modifier.isPublic(method.getDeclaringClass().getModifiers()) && !Modifier.isStatic(method.getModifiers()))
+					return lookup.unreflect(method);
+			} catch (NoSuchMethodException ignore) {
+			}
+		}
+		if (field == null || Modifier.isStatic(field.getModifiers()))
+			return null;
+		try {
+			field.setAccessible(true);
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return lookup.unreflectGetter(field);
+	}
+
+	private Field getField(Class<?> type) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				return c.getDeclaredField(key);
+			} catch (NoSuchFieldException ignore) {
+			}
+		}
+		return null;
+	}
+
+	static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException)
+			return (RuntimeException) t;
+		if (t instanceof Error)
+			throw (Error) t;
+		return new IllegalStateException(t);
+	}
+
+	/**
+	 * Handles reading a key from one type of node
+	 */
+	static class Getter {
+
+		/**
+		 * returns the value as an object, boxing it if it is primitive
+		 */
+		final MethodHandle object;
+		/**
+		 * returns the value without boxing, if it is an int, otherwise null
+		 */
+		final MethodHandle integer;
+
+		Getter(MethodHandle object, MethodHandle integer) {
+			this.object = object;
+			this.integer = integer;
+		}
+
+	}
+
+}
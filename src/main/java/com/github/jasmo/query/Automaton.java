@@ -0,0 +1,421 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.query;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * @author Caleb Whiting
+ *
+ * One or more {@link Pattern}s compiled into a single non-deterministic automaton, that is run over an instruction
+ * list without copying it, keeping every possible partial match of every pattern at once.
+ * <p>
+ * The list is walked once, except that once a match is reported, its pattern is run again from just after the
+ * match up to where the walk has got to (see {@link Scan#rewind}). That is usually only a few instructions, but a
+ * pattern whose partial matches run on far past its matches, such as a long repetition that turns out not to
+ * finish, makes a scan quadratic in the length of the list at worst. {@link #matches(InsnList)} only accepts at
+ * the end of the list, so it is always a single pass.
+ * <p>
+ * Only real instructions are matched, labels, line numbers and frames are skipped. Each pattern reports its
+ * leftmost matches, with repetition taking as much as it can. They don't overlap each other, but may overlap those
+ * of other patterns. Empty matches aren't reported.
+ */
+public class Automaton {
+
+	private static final int MATCH = 0;
+	private static final int SPLIT = 1;
+	private static final int JUMP = 2;
+	private static final int SAVE = 3;
+	private static final int ACCEPT = 4;
+	private static final int FAIL = 5;
+
+	private final int[] ops;
+	private final int[] x;
+	private final int[] y;
+	private final CompiledQuery[] queries;
+	/**
+	 * the pattern each instruction belongs to
+	 */
+	private final int[] owners;
+	private final int[] entries;
+	private final String[] captures;
+
+	private Automaton(Builder builder, int[] entries) {
+		int n = builder.size();
+		this.ops = Arrays.copyOf(builder.ops, n);
+		this.x = Arrays.copyOf(builder.x, n);
+		this.y = Arrays.copyOf(builder.y, n);
+		this.queries = Arrays.copyOf(builder.queries, n);
+		this.owners = Arrays.copyOf(builder.owners, n);
+		this.entries = entries;
+		this.captures = builder.captures.toArray(new String[builder.captures.size()]);
+	}
+
+	/**
+	 * @param patterns matched together, each match telling which one it is by its index here
+	 */
+	public static Automaton compile(Pattern... patterns) {
+		Builder builder = new Builder();
+		int[] entries = new int[patterns.length];
+		for (int i = 0; i < patterns.length; i++) {
+			builder.pattern = i;
+			entries[i] = builder.size();
+			patterns[i].emit(builder);
+			builder.emit(ACCEPT, 0, 0, null);
+		}
+		return new Automaton(builder, entries);
+	}
+
+	/**
+	 * @return the match of the first pattern that matches every real instruction of the list, or null
+	 */
+	public Match matches(InsnList list) {
+		Match[] result = new Match[1];
+		run(list, true, match -> {
+			if (result[0] == null || match.getPattern() < result[0].getPattern())
+				result[0] = match;
+		});
+		return result[0];
+	}
+
+	/**
+	 * Finds the matches of every pattern in the list
+	 *
+	 * @param action called with every match, in the order they are found
+	 */
+	public void scan(InsnList list, Consumer<Match> action) {
+		run(list, false, action);
+	}
+
+	/**
+	 * @return the matches of every pattern in the list, in the order they are found
+	 */
+	public List<Match> findAll(InsnList list) {
+		List<Match> matches = new ArrayList<>();
+		run(list, false, matches::add);
+		return matches;
+	}
+
+	private void run(InsnList list, boolean anchored, Consumer<Match> action) {
+		new Scan(anchored, action).run(real(list.getFirst()), null, 0, -1, null);
+	}
+
+	/**
+	 * Adds the thread at the given instruction, following jumps, splits and saves straight away
+	 *
+	 * @param first the first instruction the thread matched, null if none yet
+	 * @param node  the instruction the thread will be matched against
+	 * @param prev  the instruction that was matched last
+	 */
+	private void add(Threads threads, int pc, int start, AbstractInsnNode first, AbstractInsnNode[] caps,
+	                 AbstractInsnNode node, AbstractInsnNode prev) {
+		if (threads.on[pc])
+			return;
+		threads.on[pc] = true;
+		switch (ops[pc]) {
+			case JUMP:
+				add(threads, x[pc], start, first, caps, node, prev);
+				break;
+			case SPLIT:
+				add(threads, x[pc], start, first, caps, node, prev);
+				add(threads, y[pc], start, first, caps, node, prev);
+				break;
+			case SAVE:
+				caps = caps.clone();
+				int slot = x[pc];
+				if (slot % 2 == 0) {
+					caps[slot] = node;
+				} else if (caps[slot - 1] == node) {
+					// nothing was matched in between
+					caps[slot - 1] = null;
+					caps[slot] = null;
+				} else {
+					caps[slot] = prev;
+				}
+				add(threads, pc + 1, start, first, caps, node, prev);
+				break;
+			case FAIL:
+				break;
+			default:
+				threads.push(pc, start, first, caps);
+				break;
+		}
+	}
+
+	private static AbstractInsnNode real(AbstractInsnNode node) {
+		while (node != null && node.getOpcode() == -1)
+			node = node.getNext();
+		return node;
+	}
+
+	/**
+	 * The state of a run over an instruction list, for every pattern or just one
+	 */
+	private class Scan {
+
+		private final boolean anchored;
+		private final Consumer<Match> action;
+		private Threads current = new Threads(ops.length);
+		private Threads next = new Threads(ops.length);
+		private final Match[] best = new Match[entries.length];
+		private final boolean[] cut = new boolean[entries.length];
+		private final int[] cutStart = new int[entries.length];
+
+		Scan(boolean anchored, Consumer<Match> action) {
+			this.anchored = anchored;
+			this.action = action;
+		}
+
+		/**
+		 * @param node    the instruction to start at
+		 * @param prev    the instruction before it
+		 * @param pos     the position of the instruction
+		 * @param pattern the only pattern to run, or -1 for all of them
+		 * @param last    the instruction to stop after, leaving the threads that follow it in {@link #next}; or
+		 *                null to run to the end of the list
+		 */
+		void run(AbstractInsnNode node, AbstractInsnNode prev, int pos, int pattern, AbstractInsnNode last) {
+			int from = pattern == -1 ? 0 : pattern;
+			int to = pattern == -1 ? entries.length : pattern + 1;
+			for (; ; pos++) {
+				if (!anchored || pos == 0) {
+					for (int p = from; p < to; p++)
+						add(current, entries[p], pos, null, new AbstractInsnNode[captures.length * 2], node, prev);
+				}
+				if (current.size == 0 && anchored)
+					return;
+				AbstractInsnNode following = node == null ? null : real(node.getNext());
+				Arrays.fill(cut, false);
+				for (int i = 0; i < current.size; i++) {
+					int pc = current.pcs[i];
+					int start = current.starts[i];
+					int p = owners[pc];
+					if (cut[p] && start == cutStart[p])
+						// lower priority than a thread that already accepted
+						continue;
+					if (ops[pc] == ACCEPT) {
+						if (start == pos || (anchored && node != null))
+							continue;
+						if (best[p] == null || start <= best[p].start)
+							best[p] = new Match(p, start, pos - 1, current.firsts[i], prev, current.caps[i], captures);
+						cut[p] = true;
+						cutStart[p] = start;
+					} else if (ops[pc] == MATCH && node != null && (queries[pc] == null || queries[pc].matches(node))) {
+						AbstractInsnNode first = current.firsts[i] != null ? current.firsts[i] : node;
+						add(next, pc + 1, start, first, current.caps[i], following, node);
+					}
+				}
+				// a pattern's best match is final once no thread that started as early is left
+				for (int p = from; p < to; p++) {
+					if (best[p] == null || (node != null && next.hasStartedBy(owners, p, best[p].start)))
+						continue;
+					Match match = best[p];
+					best[p] = null;
+					action.accept(match);
+					rewind(match, node, pos);
+				}
+				if (node == null || node == last)
+					return;
+				Threads t = current;
+				current = next;
+				next = t;
+				next.clear();
+				prev = node;
+				node = following;
+			}
+		}
+
+		/**
+		 * Drops the threads of the match's pattern that started within it. They may have kept threads that started
+		 * after the match off the instructions they were on, or accepted before it was final, so the pattern is run
+		 * again from just after the match up to the current instruction, to take their place.
+		 *
+		 * @param node the current instruction, or null at the end of the list
+		 */
+		private void rewind(Match match, AbstractInsnNode node, int pos) {
+			int p = match.getPattern();
+			next.removeStartedBy(owners, p, pos);
+			if (match.end == pos)
+				return;
+			Scan again = new Scan(false, action);
+			again.run(real(match.getLast().getNext()), match.getLast(), match.end + 1, p, node);
+			next.addAll(again.next);
+			best[p] = again.best[p];
+		}
+
+	}
+
+	/**
+	 * The threads of one step, in order of priority
+	 */
+	private static class Threads {
+
+		private final boolean[] on;
+		private final int[] pcs;
+		private final int[] starts;
+		private final AbstractInsnNode[] firsts;
+		private final AbstractInsnNode[][] caps;
+		private int size;
+
+		Threads(int length) {
+			on = new boolean[length];
+			pcs = new int[length];
+			starts = new int[length];
+			firsts = new AbstractInsnNode[length];
+			caps = new AbstractInsnNode[length][];
+		}
+
+		void push(int pc, int start, AbstractInsnNode first, AbstractInsnNode[] cap) {
+			pcs[size] = pc;
+			starts[size] = start;
+			firsts[size] = first;
+			caps[size] = cap;
+			size++;
+		}
+
+		boolean hasStartedBy(int[] owners, int pattern, int pos) {
+			for (int i = 0; i < size; i++) {
+				if (owners[pcs[i]] == pattern && starts[i] <= pos)
+					return true;
+			}
+			return false;
+		}
+
+		void removeStartedBy(int[] owners, int pattern, int pos) {
+			int n = 0;
+			Arrays.fill(on, false);
+			for (int i = 0; i < size; i++) {
+				if (owners[pcs[i]] == pattern && starts[i] <= pos)
+					continue;
+				on[pcs[i]] = true;
+				pcs[n] = pcs[i];
+				starts[n] = starts[i];
+				firsts[n] = firsts[i];
+				caps[n] = caps[i];
+				n++;
+			}
+			for (int i = n; i < size; i++) {
+				firsts[i] = null;
+				caps[i] = null;
+			}
+			size = n;
+		}
+
+		/**
+		 * Adds the threads of another step, which must not be on any of the same instructions
+		 */
+		void addAll(Threads other) {
+			for (int i = 0; i < other.size; i++) {
+				on[other.pcs[i]] = true;
+				push(other.pcs[i], other.starts[i], other.firsts[i], other.caps[i]);
+			}
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				firsts[i] = null;
+				caps[i] = null;
+			}
+			Arrays.fill(on, false);
+			size = 0;
+		}
+
+	}
+
+	/**
+	 * Appends the instructions of the automaton, see {@link Pattern#emit(Builder)}
+	 */
+	static class Builder {
+
+		private int[] ops = new int[16];
+		private int[] x = new int[16];
+		private int[] y = new int[16];
+		private CompiledQuery[] queries = new CompiledQuery[16];
+		private int[] owners = new int[16];
+		private final List<String> captures = new ArrayList<>();
+		private int pattern;
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		private int emit(int op, int a, int b, CompiledQuery query) {
+			if (size == ops.length) {
+				ops = Arrays.copyOf(ops, size * 2);
+				x = Arrays.copyOf(x, size * 2);
+				y = Arrays.copyOf(y, size * 2);
+				queries = Arrays.copyOf(queries, size * 2);
+				owners = Arrays.copyOf(owners, size * 2);
+			}
+			ops[size] = op;
+			x[size] = a;
+			y[size] = b;
+			queries[size] = query;
+			owners[size] = pattern;
+			return size++;
+		}
+
+		/**
+		 * @param query the query the instruction must match, or null for any instruction
+		 */
+		void match(CompiledQuery query) {
+			emit(MATCH, 0, 0, query);
+		}
+
+		/**
+		 * @return a split, to be {@link #patch(int, int, int) patched} with its targets in order of priority
+		 */
+		int split() {
+			return emit(SPLIT, -1, -1, null);
+		}
+
+		/**
+		 * @return a jump, to be {@link #patch(int, int, int) patched} with its target
+		 */
+		int jump() {
+			return emit(JUMP, -1, -1, null);
+		}
+
+		void fail() {
+			emit(FAIL, 0, 0, null);
+		}
+
+		void save(int slot) {
+			emit(SAVE, slot, 0, null);
+		}
+
+		/**
+		 * Sets the targets of a split or jump, leaving those given as -1 as they are
+		 */
+		void patch(int pc, int a, int b) {
+			if (a != -1)
+				x[pc] = a;
+			if (b != -1)
+				y[pc] = b;
+		}
+
+		/**
+		 * @return the slot of the named capture
+		 */
+		int capture(String name) {
+			int slot = captures.indexOf(name);
+			if (slot == -1) {
+				slot = captures.size();
+				captures.add(name);
+			}
+			return slot;
+		}
+
+	}
+
+}
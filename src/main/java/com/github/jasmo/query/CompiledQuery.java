@@ -0,0 +1,161 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.query;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * @author Caleb Whiting
+ *
+ * A {@link Query} turned into one typed condition per key, see {@link Query#compile()}.
+ * <p>
+ * Keys are resolved to method handles when a node of a new type is first matched, and int values are compared
+ * without boxing, so matching doesn't allocate. Values compare the same way {@link QueryUtil} compares them:
+ * {@link AnyOf} matches any of its values, and an array matches an array or list with equal elements.
+ */
+public class CompiledQuery {
+
+	private final Condition[] conditions;
+
+	CompiledQuery(Object[] values) {
+		if (values.length % 2 != 0)
+			throw new IllegalArgumentException("Query values must be key-value pairs");
+		conditions = new Condition[values.length / 2];
+		for (int i = 0; i < values.length; i += 2) {
+			Accessor accessor = Accessor.of((String) values[i]);
+			Object value = values[i + 1];
+			Object[] options = value instanceof AnyOf ? ((AnyOf) value).values() : new Object[]{value};
+			conditions[i / 2] = isInts(options) ? new IntCondition(accessor, options) : new ObjectCondition(accessor, options);
+		}
+	}
+
+	private static boolean isInts(Object[] options) {
+		for (Object option : options) {
+			if (!(option instanceof Integer))
+				return false;
+		}
+		return options.length > 0;
+	}
+
+	public boolean matches(Object node) {
+		if (node == null)
+			return false;
+		try {
+			for (Condition condition : conditions) {
+				if (!condition.test(node))
+					return false;
+			}
+			return true;
+		} catch (Throwable t) {
+			throw Accessor.rethrow(t);
+		}
+	}
+
+	private static abstract class Condition {
+
+		final Accessor accessor;
+
+		Condition(Accessor accessor) {
+			this.accessor = accessor;
+		}
+
+		abstract boolean test(Object node) throws Throwable;
+
+	}
+
+	private static class IntCondition extends Condition {
+
+		private final int[] values;
+		private final Integer[] boxed;
+
+		IntCondition(Accessor accessor, Object[] options) {
+			super(accessor);
+			values = new int[options.length];
+			boxed = new Integer[options.length];
+			for (int i = 0; i < options.length; i++) {
+				values[i] = (Integer) options[i];
+				boxed[i] = (Integer) options[i];
+			}
+		}
+
+		@Override
+		boolean test(Object node) throws Throwable {
+			Accessor.Getter getter = accessor.get(node.getClass());
+			if (getter.integer != null) {
+				int value = (int) getter.integer.invokeExact(node);
+				for (int v : values) {
+					if (v == value)
+						return true;
+				}
+				return false;
+			}
+			// not an int field, compared as objects like any other value
+			Object value = (Object) getter.object.invokeExact(node);
+			for (Integer v : boxed) {
+				if (v.equals(value))
+					return true;
+			}
+			return false;
+		}
+
+	}
+
+	private static class ObjectCondition extends Condition {
+
+		private final Object[] values;
+
+		ObjectCondition(Accessor accessor, Object[] options) {
+			super(accessor);
+			this.values = options;
+		}
+
+		@Override
+		boolean test(Object node) throws Throwable {
+			Object value = (Object) accessor.get(node.getClass()).object.invokeExact(node);
+			for (Object v : values) {
+				if (isEqual(value, v))
+					return true;
+			}
+			return false;
+		}
+
+		private static boolean isEqual(Object o, Object value) {
+			if (o == value)
+				return true;
+			if (o == null || value == null)
+				return false;
+			if (value instanceof Object[]) {
+				Object[] array = (Object[]) value;
+				if (o instanceof List) {
+					List<?> list = (List<?>) o;
+					if (list.size() != array.length)
+						return false;
+					for (int i = 0; i < array.length; i++) {
+						if (!Objects.equals(list.get(i), array[i]))
+							return false;
+					}
+					return true;
+				}
+				if (o instanceof Object[]) {
+					Object[] other = (Object[]) o;
+					if (other.length != array.length)
+						return false;
+					for (int i = 0; i < array.length; i++) {
+						if (!Objects.equals(other[i], array[i]))
+							return false;
+					}
+					return true;
+				}
+			}
+			return value.equals(o);
+		}
+
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.query;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+
+/**
+ * @author Caleb Whiting
+ *
+ * A match of a {@link Pattern}, found by an {@link Automaton}
+ */
+public class Match {
+
+	private final int pattern;
+	final int start;
+	final int end;
+	private final AbstractInsnNode first;
+	private final AbstractInsnNode last;
+	private final AbstractInsnNode[] captures;
+	private final String[] names;
+
+	Match(int pattern, int start, int end, AbstractInsnNode first, AbstractInsnNode last, AbstractInsnNode[] captures,
+	      String[] names) {
+		this.pattern = pattern;
+		this.start = start;
+		this.end = end;
+		this.first = first;
+		this.last = last;
+		this.captures = captures;
+		this.names = names;
+	}
+
+	/**
+	 * @return the index of the pattern that matched, in the order given to {@link Automaton#compile(Pattern...)}
+	 */
+	public int getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return the first instruction of the match
+	 */
+	public AbstractInsnNode getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return the last instruction of the match
+	 */
+	public AbstractInsnNode getLast() {
+		return last;
+	}
+
+	/**
+	 * @return the number of real instructions in the match
+	 */
+	public int size() {
+		return end - start + 1;
+	}
+
+	/**
+	 * @return the first instruction of the named capture, or null if it didn't match anything
+	 */
+	public AbstractInsnNode getFirst(String capture) {
+		int slot = slot(capture);
+		return slot == -1 ? null : captures[slot * 2];
+	}
+
+	/**
+	 * @return the last instruction of the named capture, or null if it didn't match anything
+	 */
+	public AbstractInsnNode getLast(String capture) {
+		int slot = slot(capture);
+		return slot == -1 ? null : captures[slot * 2 + 1];
+	}
+
+	private int slot(String capture) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(capture))
+				return i;
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.query;
+
+/**
+ * @author Caleb Whiting
+ *
+ * A pattern over a sequence of instructions, to be compiled into an {@link Automaton}.
+ * <p>
+ * Wherever a pattern takes elements, each element may be a {@link Pattern}, a {@link Query} matching a single
+ * instruction, an {@link AnyOf} of elements matching any one of them, or null matching any single instruction.
+ * Repetition is greedy.
+ */
+public abstract class Pattern {
+
+	Pattern() {
+	}
+
+	/**
+	 * @return a pattern matching any single instruction
+	 */
+	public static Pattern any() {
+		return new Single(null);
+	}
+
+	/**
+	 * @return a pattern matching a single instruction that matches the query
+	 */
+	public static Pattern insn(Query query) {
+		return new Single(query);
+	}
+
+	/**
+	 * @return a pattern matching the elements one after the other
+	 */
+	public static Pattern seq(Object... elements) {
+		Pattern[] patterns = new Pattern[elements.length];
+		for (int i = 0; i < elements.length; i++)
+			patterns[i] = of(elements[i]);
+		return new Sequence(patterns);
+	}
+
+	/**
+	 * @return a pattern matching any one of the elements, preferring the first
+	 */
+	public static Pattern anyOf(Object... elements) {
+		Pattern[] patterns = new Pattern[elements.length];
+		for (int i = 0; i < elements.length; i++)
+			patterns[i] = of(elements[i]);
+		return new Alternatives(patterns);
+	}
+
+	/**
+	 * @return a pattern matching the element or nothing
+	 */
+	public static Pattern optional(Object element) {
+		return new Repeat(of(element), 0, 1);
+	}
+
+	/**
+	 * @return a pattern matching the element any number of times, including none
+	 */
+	public static Pattern repeat(Object element) {
+		return new Repeat(of(element), 0, -1);
+	}
+
+	/**
+	 * @param min the least number of times the element has to match
+	 * @param max the most number of times the element may match, or -1 for no limit
+	 */
+	public static Pattern repeat(Object element, int min, int max) {
+		if (min < 0 || (max != -1 && max < min))
+			throw new IllegalArgumentException("Invalid repetition: " + min + ", " + max);
+		return new Repeat(of(element), min, max);
+	}
+
+	/**
+	 * @return a pattern matching the element, and remembering the first and last instruction it matched under the
+	 * given name (see {@link Match#getFirst(String)})
+	 */
+	public static Pattern capture(String name, Object element) {
+		return new Capture(name, of(element));
+	}
+
+	static Pattern of(Object element) {
+		if (element == null)
+			return any();
+		if (element instanceof Pattern)
+			return (Pattern) element;
+		if (element instanceof Query)
+			return insn((Query) element);
+		if (element instanceof AnyOf)
+			return anyOf(((AnyOf) element).values());
+		throw new IllegalArgumentException("Not a pattern element: " + element);
+	}
+
+	/**
+	 * Appends the instructions of the automaton that match this pattern
+	 */
+	abstract void emit(Automaton.Builder builder);
+
+	private static class Single extends Pattern {
+
+		private final Query query;
+
+		Single(Query query) {
+			this.query = query;
+		}
+
+		@Override
+		void emit(Automaton.Builder builder) {
+			builder.match(query == null ? null : query.compile());
+		}
+
+	}
+
+	private static class Sequence extends Pattern {
+
+		private final Pattern[] patterns;
+
+		Sequence(Pattern[] patterns) {
+			this.patterns = patterns;
+		}
+
+		@Override
+		void emit(Automaton.Builder builder) {
+			for (Pattern pattern : patterns)
+				pattern.emit(builder);
+		}
+
+	}
+
+	private static class Alternatives extends Pattern {
+
+		private final Pattern[] patterns;
+
+		Alternatives(Pattern[] patterns) {
+			this.patterns = patterns;
+		}
+
+		@Override
+		void emit(Automaton.Builder builder) {
+			if (patterns.length == 0) {
+				builder.fail();
+				return;
+			}
+			// split to each alternative in turn, every one of them jumping past the rest when done
+			int[] jumps = new int[patterns.length - 1];
+			for (int i = 0; i < patterns.length - 1; i++) {
+				int split = builder.split();
+				builder.patch(split, builder.size(), -1);
+				patterns[i].emit(builder);
+				jumps[i] = builder.jump();
+				builder.patch(split, -1, builder.size());
+			}
+			patterns[patterns.length - 1].emit(builder);
+			for (int jump : jumps)
+				builder.patch(jump, builder.size(), -1);
+		}
+
+	}
+
+	private static class Repeat extends Pattern {
+
+		private final Pattern pattern;
+		private final int min;
+		private final int max;
+
+		Repeat(Pattern pattern, int min, int max) {
+			this.pattern = pattern;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		void emit(Automaton.Builder builder) {
+			for (int i = 0; i < min; i++)
+				pattern.emit(builder);
+			if (max == -1) {
+				// split: body, then back to the split; or past it
+				int split = builder.split();
+				pattern.emit(builder);
+				int jump = builder.jump();
+				builder.patch(jump, split, -1);
+				builder.patch(split, split + 1, builder.size());
+				return;
+			}
+			int[] splits = new int[max - min];
+			for (int i = 0; i < splits.length; i++) {
+				splits[i] = builder.split();
+				builder.patch(splits[i], builder.size(), -1);
+				pattern.emit(builder);
+			}
+			for (int split : splits)
+				builder.patch(split, -1, builder.size());
+		}
+
+	}
+
+	private static class Capture extends Pattern {
+
+		private final String name;
+		private final Pattern pattern;
+
+		Capture(String name, Pattern pattern) {
+			this.name = name;
+			this.pattern = pattern;
+		}
+
+		@Override
+		void emit(Automaton.Builder builder) {
+			int slot = builder.capture(name);
+			builder.save(slot * 2);
+			pattern.emit(builder);
+			builder.save(slot * 2 + 1);
+		}
+
+	}
+
+}
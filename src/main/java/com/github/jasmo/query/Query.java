@@ -13,6 +13,7 @@ package com.github.jasmo.query;
 public class Query {
 
 	private final Object[] values;
+	private CompiledQuery compiled;
 
 	public Query(Object... values) {
 		this.values = values;
@@ -22,4 +23,18 @@ public class Query {
 		return this.values;
 	}
 
+	/**
+	 * @return the query compiled for matching, see {@link CompiledQuery}. The values mustn't change after this.
+	 */
+	public CompiledQuery compile() {
+		CompiledQuery compiled = this.compiled;
+		if (compiled == null)
+			this.compiled = compiled = new CompiledQuery(values);
+		return compiled;
+	}
+
+	public boolean matches(Object node) {
+		return compile().matches(node);
+	}
+
 }
\ No newline at end of file
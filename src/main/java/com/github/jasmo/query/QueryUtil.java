@@ -10,7 +10,6 @@ package com.github.jasmo.query;
 import org.objectweb.asm.tree.AbstractInsnNode;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
 import java.util.Arrays;
 
 /**
@@ -59,21 +58,11 @@ public class QueryUtil {
 	}
 
 	public static boolean check(AbstractInsnNode node, Query query) {
-		return check(node, query.values());
+		return query.matches(node);
 	}
 
 	private static Object reflectField(Object o, String name) {
-		Class c = o.getClass();
-		while (c != null) {
-			try {
-				Field field = c.getDeclaredField(name);
-				field.setAccessible(true);
-				return field.get(o);
-			} catch (ReflectiveOperationException ignore) {
-			}
-			c = c.getSuperclass();
-		}
-		return null;
+		return Accessor.of(name).get(o);
 	}
 
 	@SuppressWarnings("SpellCheckingInspection")
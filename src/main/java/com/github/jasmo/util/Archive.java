@@ -0,0 +1,365 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Zip/jar reader that memory maps the archive and parses the central directory itself, instead of going
+ * through {@link JarFile} streams. {@link #raw(Entry)} gives an entry's data without copying it, which is how
+ * entries are copied to another archive. {@link #read(Entry)} copies stored entries straight out of the mapping
+ * and inflates deflated entries into a single array of the entry's real size, since class files are parsed
+ * from arrays, and checks the CRC of the result. Reads are safe to run from multiple threads.
+ * <p>
+ * The file is only open while it is being mapped, so an archive can be kept around to read from later without
+ * holding on to a file handle. Closing it releases the native memory of the inflaters and the verifier, and
+ * drops the mapping so that it can be unmapped once it is collected; reads after that fail.
+ * <p>
+ * Signature verification is only done when asked for, and only if the archive is actually signed, in which case
+ * entries are read through a verifying {@link JarFile}.
+ */
+public class Archive implements Closeable {
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+	private static final int ZIP64_END_HEADER = 0x06064b50;
+	private static final int ZIP64_END_LOCATOR = 0x07064b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+
+	private final Path path;
+	private volatile ByteBuffer buffer;
+	private final List<Entry> entries;
+	private final JarFile verifier;
+	/**
+	 * idle inflaters, shared by the threads reading this archive and ended when it is closed
+	 */
+	private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+	private volatile boolean closed;
+
+	public Archive(Path path) throws IOException {
+		this(path, false);
+	}
+
+	public Archive(Path path, boolean verify) throws IOException {
+		this.path = path;
+		// the mapping stays valid once the channel is closed, it is released when the archive is garbage collected
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new ZipException("Archive is too large to be mapped: " + path);
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			this.buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		this.entries = Collections.unmodifiableList(readCentralDirectory());
+		this.verifier = verify && isSigned() ? new JarFile(path.toFile(), true) : null;
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		int end = findEnd();
+		long count = u16(end + 10);
+		long offset = u32(end + 16);
+		if (count == 0xFFFF || offset == 0xFFFFFFFFL) {
+			// zip64, the real values are in the zip64 end of central directory record
+			int locator = end - 20;
+			if (locator < 0 || buffer.getInt(locator) != ZIP64_END_LOCATOR)
+				throw new ZipException("Missing zip64 end of central directory locator: " + path);
+			int record = position(buffer.getLong(locator + 8));
+			if (buffer.getInt(record) != ZIP64_END_HEADER)
+				throw new ZipException("Invalid zip64 end of central directory record: " + path);
+			count = buffer.getLong(record + 32);
+			offset = buffer.getLong(record + 48);
+		}
+		List<Entry> entries = new ArrayList<>((int) Math.min(count, Integer.MAX_VALUE));
+		int position = position(offset);
+		for (long i = 0; i < count; i++) {
+			if (buffer.getInt(position) != CENTRAL_HEADER)
+				throw new ZipException("Invalid central directory header at " + position + ": " + path);
+			int nameLength = u16(position + 28);
+			int extraLength = u16(position + 30);
+			int commentLength = u16(position + 32);
+			Entry entry = new Entry(this);
+			entry.method = u16(position + 10);
+			entry.time = buffer.getInt(position + 12);
+			entry.crc = u32(position + 16);
+			entry.compressedSize = u32(position + 20);
+			entry.size = u32(position + 24);
+			entry.offset = u32(position + 42);
+			entry.name = string(position + 46, nameLength);
+			readZip64Extra(entry, position + 46 + nameLength, extraLength);
+			entries.add(entry);
+			position += 46 + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	private void readZip64Extra(Entry entry, int position, int length) {
+		int end = position + length;
+		while (position + 4 <= end) {
+			int id = u16(position);
+			int size = u16(position + 2);
+			if (id == ZIP64_EXTRA) {
+				// only the values that overflowed are present, in this order
+				int field = position + 4;
+				if (entry.size == 0xFFFFFFFFL) {
+					entry.size = buffer.getLong(field);
+					field += 8;
+				}
+				if (entry.compressedSize == 0xFFFFFFFFL) {
+					entry.compressedSize = buffer.getLong(field);
+					field += 8;
+				}
+				if (entry.offset == 0xFFFFFFFFL) {
+					entry.offset = buffer.getLong(field);
+				}
+				return;
+			}
+			position += 4 + size;
+		}
+	}
+
+	private int findEnd() throws IOException {
+		// the end record is at least 22 bytes, followed by a comment of up to 65535 bytes
+		int limit = Math.max(0, buffer.limit() - 22 - 0xFFFF);
+		for (int position = buffer.limit() - 22; position >= limit; position--) {
+			if (buffer.getInt(position) == END_HEADER)
+				return position;
+		}
+		throw new ZipException("Missing end of central directory record: " + path);
+	}
+
+	private boolean isSigned() {
+		for (Entry entry : entries) {
+			String name = entry.getName().toUpperCase(Locale.ENGLISH);
+			if (name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA") ||
+					name.endsWith(".DSA") || name.endsWith(".EC"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the archive is signed and its entries are verified as they are read
+	 */
+	public boolean isVerified() {
+		return verifier != null;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	/**
+	 * @return a read-only view of the entry's data, as it is stored in the archive (possibly still compressed)
+	 */
+	public ByteBuffer raw(Entry entry) throws IOException {
+		if (buffer == null)
+			throw new IOException("Archive is closed: " + path);
+		int header = position(entry.offset);
+		if (buffer.getInt(header) != LOCAL_HEADER)
+			throw new ZipException("Invalid local header for entry: " + entry.getName());
+		int start = header + 30 + u16(header + 26) + u16(header + 28);
+		ByteBuffer data = buffer.duplicate();
+		data.position(start);
+		data.limit(position(start + entry.compressedSize));
+		return data.slice();
+	}
+
+	public byte[] read(Entry entry) throws IOException {
+		if (entry.size > Integer.MAX_VALUE - 8)
+			throw new ZipException("Entry is too large to be read into memory: " + entry.getName());
+		if (verifier != null)
+			return readVerified(entry);
+		byte[] bytes = new byte[(int) entry.size];
+		ByteBuffer data = raw(entry);
+		switch (entry.method) {
+			case ZipEntry.STORED:
+				data.get(bytes);
+				return check(entry, bytes);
+			case ZipEntry.DEFLATED:
+				// nowrap inflaters may need an extra trailing byte
+				byte[] input = new byte[data.remaining() + 1];
+				data.get(input, 0, input.length - 1);
+				Inflater inf = inflaters.poll();
+				if (inf == null)
+					inf = new Inflater(true);
+				inf.setInput(input);
+				try {
+					int n = 0;
+					while (n < bytes.length) {
+						int count = inf.inflate(bytes, n, bytes.length - n);
+						if (count == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary()))
+							break;
+						n += count;
+					}
+					if (n != bytes.length)
+						throw new ZipException("Invalid entry size for " + entry.getName() + ", expected " +
+								bytes.length + " but got " + n);
+				} catch (DataFormatException e) {
+					throw new ZipException("Invalid deflate data for " + entry.getName() + ": " + e.getMessage());
+				} finally {
+					release(inf);
+				}
+				return check(entry, bytes);
+			default:
+				throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.getName());
+		}
+	}
+
+	private static byte[] check(Entry entry, byte[] bytes) throws ZipException {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		if (crc.getValue() != entry.crc)
+			throw new ZipException("Invalid CRC for " + entry.getName() + ", expected " + Long.toHexString(entry.crc) +
+					" but got " + Long.toHexString(crc.getValue()));
+		return bytes;
+	}
+
+	private byte[] readVerified(Entry entry) throws IOException {
+		// reading the stream to the end is what triggers the verification
+		try (InputStream in = verifier.getInputStream(verifier.getJarEntry(entry.getName()))) {
+			byte[] bytes = new byte[(int) entry.size];
+			int n = 0;
+			for (int count; n < bytes.length && (count = in.read(bytes, n, bytes.length - n)) != -1; ) {
+				n += count;
+			}
+			if (n != bytes.length || in.read() != -1)
+				throw new ZipException("Invalid entry size for " + entry.getName());
+			return bytes;
+		}
+	}
+
+	private void release(Inflater inf) {
+		if (closed) {
+			inf.end();
+			return;
+		}
+		inf.reset();
+		inflaters.offer(inf);
+		// closed while this one was being returned, it may have missed the drain
+		if (closed)
+			drain();
+	}
+
+	private void drain() {
+		for (Inflater inf; (inf = inflaters.poll()) != null; )
+			inf.end();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		buffer = null;
+		drain();
+		if (verifier != null)
+			verifier.close();
+	}
+
+	private int position(long offset) throws ZipException {
+		if (offset < 0 || offset > buffer.limit())
+			throw new ZipException("Invalid offset " + offset + " in archive: " + path);
+		return (int) offset;
+	}
+
+	private int u16(int position) {
+		return buffer.getShort(position) & 0xFFFF;
+	}
+
+	private long u32(int position) {
+		return buffer.getInt(position) & 0xFFFFFFFFL;
+	}
+
+	private String string(int position, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer data = buffer.duplicate();
+		data.position(position);
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public static class Entry {
+
+		private final Archive archive;
+		private String name;
+		private int method;
+		private int time;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private long offset;
+
+		Entry(Archive archive) {
+			this.archive = archive;
+		}
+
+		public Archive getArchive() {
+			return archive;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return the last modification time, in MS-DOS date/time format
+		 */
+		public int getTime() {
+			return time;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Zip/jar writer that, unlike {@link java.util.jar.JarOutputStream}, can copy an entry of an {@link Archive}
+ * without inflating and deflating it again. The compressed data, CRC, sizes, method and time are copied as they are.
+ * Every other entry is deflated (or stored, if deflating doesn't make it smaller) with a fixed modification time,
+ * so the same input always gives the same archive.
+ */
+public class ArchiveWriter implements Closeable {
+
+	private static final int LOCAL_HEADER = 0x04034b50;
+	private static final int CENTRAL_HEADER = 0x02014b50;
+	private static final int END_HEADER = 0x06054b50;
+	private static final int ZIP64_END_HEADER = 0x06064b50;
+	private static final int ZIP64_END_LOCATOR = 0x07064b50;
+	private static final int ZIP64_EXTRA = 0x0001;
+
+	/**
+	 * general purpose flag for names encoded as UTF-8
+	 */
+	private static final int UTF8 = 0x800;
+
+	/**
+	 * 1980-02-01 00:00, in MS-DOS date/time format
+	 */
+	private static final int TIME = (2 << 21) | (1 << 16);
+
+	private final OutputStream out;
+	private final List<Central> central = new ArrayList<>();
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final byte[] buffer = new byte[64 * 1024];
+	private long offset;
+
+	public ArchiveWriter(OutputStream out) {
+		this.out = new BufferedOutputStream(out, buffer.length);
+	}
+
+	/**
+	 * Compresses and writes a new entry
+	 */
+	public void write(String name, byte[] bytes) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		byte[] data = bytes;
+		int method = ZipEntry.STORED;
+		if (bytes.length > 0) {
+			byte[] deflated = deflate(bytes);
+			if (deflated.length < bytes.length) {
+				data = deflated;
+				method = ZipEntry.DEFLATED;
+			}
+		}
+		Central entry = begin(name, method, TIME, crc.getValue(), data.length, bytes.length);
+		out.write(data);
+		offset += data.length;
+		central.add(entry);
+	}
+
+	/**
+	 * Copies an entry from an archive as it is, without decompressing it
+	 */
+	public void copy(String name, Archive.Entry source) throws IOException {
+		ByteBuffer data = source.getArchive().raw(source);
+		Central entry = begin(name, source.getMethod(), source.getTime(), source.getCrc(),
+				source.getCompressedSize(), source.getSize());
+		while (data.hasRemaining()) {
+			int n = Math.min(buffer.length, data.remaining());
+			data.get(buffer, 0, n);
+			out.write(buffer, 0, n);
+		}
+		offset += entry.compressedSize;
+		central.add(entry);
+	}
+
+	private byte[] deflate(byte[] bytes) {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream deflated = new ByteArrayOutputStream(bytes.length / 2 + 64);
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buffer);
+			deflated.write(buffer, 0, n);
+		}
+		return deflated.toByteArray();
+	}
+
+	private Central begin(String name, int method, int time, long crc, long compressedSize, long size) throws IOException {
+		if (compressedSize >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL)
+			throw new IOException("Entry is too large: " + name);
+		Central entry = new Central();
+		entry.name = name.getBytes(StandardCharsets.UTF_8);
+		entry.method = method;
+		entry.time = time;
+		entry.crc = crc;
+		entry.compressedSize = compressedSize;
+		entry.size = size;
+		entry.offset = offset;
+		ByteBuffer header = header(30 + entry.name.length);
+		header.putInt(LOCAL_HEADER);
+		header.putShort((short) 20);
+		header.putShort((short) UTF8);
+		header.putShort((short) method);
+		header.putInt(time);
+		header.putInt((int) crc);
+		header.putInt((int) compressedSize);
+		header.putInt((int) size);
+		header.putShort((short) entry.name.length);
+		header.putShort((short) 0);
+		header.put(entry.name);
+		write(header);
+		return entry;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			long start = offset;
+			for (Central entry : central) {
+				boolean zip64 = entry.offset >= 0xFFFFFFFFL;
+				ByteBuffer header = header(46 + entry.name.length + (zip64 ? 12 : 0));
+				header.putInt(CENTRAL_HEADER);
+				header.putShort((short) (zip64 ? 45 : 20));
+				header.putShort((short) (zip64 ? 45 : 20));
+				header.putShort((short) UTF8);
+				header.putShort((short) entry.method);
+				header.putInt(entry.time);
+				header.putInt((int) entry.crc);
+				header.putInt((int) entry.compressedSize);
+				header.putInt((int) entry.size);
+				header.putShort((short) entry.name.length);
+				header.putShort((short) (zip64 ? 12 : 0));
+				header.putShort((short) 0); // comment length
+				header.putShort((short) 0); // disk number
+				header.putShort((short) 0); // internal attributes
+				header.putInt(0); // external attributes
+				header.putInt(zip64 ? (int) 0xFFFFFFFFL : (int) entry.offset);
+				header.put(entry.name);
+				if (zip64) {
+					header.putShort((short) ZIP64_EXTRA);
+					header.putShort((short) 8);
+					header.putLong(entry.offset);
+				}
+				write(header);
+			}
+			long size = offset - start;
+			boolean zip64 = central.size() >= 0xFFFF || start >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL;
+			if (zip64) {
+				long record = offset;
+				ByteBuffer end = header(56 + 20);
+				end.putInt(ZIP64_END_HEADER);
+				end.putLong(44);
+				end.putShort((short) 45);
+				end.putShort((short) 45);
+				end.putInt(0);
+				end.putInt(0);
+				end.putLong(central.size());
+				end.putLong(central.size());
+				end.putLong(size);
+				end.putLong(start);
+				end.putInt(ZIP64_END_LOCATOR);
+				end.putInt(0);
+				end.putLong(record);
+				end.putInt(1);
+				write(end);
+			}
+			ByteBuffer end = header(22);
+			end.putInt(END_HEADER);
+			end.putShort((short) 0);
+			end.putShort((short) 0);
+			end.putShort((short) (zip64 ? 0xFFFF : central.size()));
+			end.putShort((short) (zip64 ? 0xFFFF : central.size()));
+			end.putInt(zip64 ? (int) 0xFFFFFFFFL : (int) size);
+			end.putInt(zip64 ? (int) 0xFFFFFFFFL : (int) start);
+			end.putShort((short) 0);
+			write(end);
+			out.flush();
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	private ByteBuffer header(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void write(ByteBuffer header) throws IOException {
+		out.write(header.array(), 0, header.position());
+		offset += header.position();
+	}
+
+	private static class Central {
+
+		private byte[] name;
+		private int method;
+		private int time;
+		private long crc;
+		private long compressedSize;
+		private long size;
+		private long offset;
+
+	}
+
+}
@@ -12,6 +12,7 @@ import org.apache.logging.log4j.Logger;
 
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.commons.SimpleRemapper;
 import org.objectweb.asm.tree.*;
 
@@ -56,6 +57,22 @@ public class BytecodeHelper {
 	}
 
 	public static void applyMappings(Map<String, ClassNode> classMap, Map<String, String> remap) {
+		logMappings(remap);
+		applyMappings(classMap, new SimpleRemapper(remap));
+	}
+
+	public static void applyMappings(Map<String, ClassNode> classMap, Remapper remapper) {
+		for (ClassNode node : new ArrayList<>(classMap.values())) {
+			ClassNode copy = new ClassNode();
+			ClassRemapper adapter = new ClassRemapper(copy, remapper);
+			node.accept(adapter);
+			classMap.put(node.name, copy);
+		}
+	}
+
+	public static void logMappings(Map<String, String> remap) {
+		if (!log.isDebugEnabled())
+			return;
 		log.debug("Applying mappings [");
 		for (Map.Entry<String, String> entry : remap.entrySet()) {
 			String k = entry.getKey();
@@ -72,13 +89,6 @@ public class BytecodeHelper {
 			log.debug(" Map {} to {}", entry.getKey(), entry.getValue());
 		}
 		log.debug("]");
-		SimpleRemapper remapper = new SimpleRemapper(remap);
-		for (ClassNode node : new ArrayList<>(classMap.values())) {
-			ClassNode copy = new ClassNode();
-			ClassRemapper adapter = new ClassRemapper(copy, remapper);
-			node.accept(adapter);
-			classMap.put(node.name, copy);
-		}
 	}
 
 	public static AbstractInsnNode newIntegerNode(int i) {
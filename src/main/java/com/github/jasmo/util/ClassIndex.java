@@ -0,0 +1,240 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * On-disk index of the class skeletons in a library jar: name, access, super class, interfaces and the access,
+ * name and descriptor of every field and method. That's all {@link ClassPath} needs, and reading it back from a
+ * memory mapped index is a lot faster than inflating and parsing every class in the jar again.
+ * <p>
+ * An index remembers the path, size and modification time of the jar it was made from, and is ignored once any
+ * of those no longer match. Strings are stored once, in a table at the start of the index. Opening an index only
+ * reads the class names, each class is decoded when it is asked for.
+ */
+public class ClassIndex {
+
+	private static final Logger log = LogManager.getLogger("ClassIndex");
+
+	private static final int MAGIC = 0x4a534d49;
+	private static final int VERSION = 2;
+
+	private final Path dir;
+
+	/**
+	 * @param dir the directory to keep the indexes in
+	 */
+	public ClassIndex(Path dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * @return the skeletons of the classes in the given jar, or null if there is no up to date index for it
+	 */
+	public Skeletons read(Path jar) {
+		Path file = getFile(jar);
+		if (!Files.exists(file))
+			return null;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.getInt() != MAGIC || in.getInt() != VERSION)
+				return null;
+			BasicFileAttributes attrs = Files.readAttributes(jar, BasicFileAttributes.class);
+			if (!readString(in).equals(jar.toAbsolutePath().toString()) || in.getLong() != attrs.size() ||
+					in.getLong() != attrs.lastModifiedTime().toMillis()) {
+				return null;
+			}
+			return new Skeletons(in);
+		} catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			log.warn("Ignoring unreadable class index: {}", file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the index for the given jar
+	 *
+	 * @param attrs the attributes of the jar from before it was read
+	 */
+	public void write(Path jar, BasicFileAttributes attrs, Collection<ClassNode> classes) throws IOException {
+		Map<String, Integer> table = new LinkedHashMap<>();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		int[] names = new int[classes.size()];
+		int[] offsets = new int[classes.size()];
+		int n = 0;
+		for (ClassNode c : classes) {
+			names[n] = index(table, c.name);
+			offsets[n++] = out.size();
+			out.writeInt(c.access);
+			out.writeInt(c.superName == null ? -1 : index(table, c.superName));
+			out.writeShort(c.interfaces.size());
+			for (String iface : c.interfaces)
+				out.writeInt(index(table, iface));
+			out.writeInt(c.fields.size());
+			for (FieldNode f : c.fields) {
+				out.writeInt(f.access);
+				out.writeInt(index(table, f.name));
+				out.writeInt(index(table, f.desc));
+			}
+			out.writeInt(c.methods.size());
+			for (MethodNode m : c.methods) {
+				out.writeInt(m.access);
+				out.writeInt(index(table, m.name));
+				out.writeInt(index(table, m.desc));
+			}
+		}
+		out.flush();
+		ByteArrayOutputStream strings = new ByteArrayOutputStream();
+		DataOutputStream stringsOut = new DataOutputStream(strings);
+		int[] stringOffsets = new int[table.size()];
+		n = 0;
+		for (String s : table.keySet()) {
+			stringOffsets[n++] = stringsOut.size();
+			writeString(stringsOut, s);
+		}
+		stringsOut.flush();
+		Path file = getFile(jar);
+		Files.createDirectories(dir);
+		Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			index.writeInt(MAGIC);
+			index.writeInt(VERSION);
+			writeString(index, jar.toAbsolutePath().toString());
+			index.writeLong(attrs.size());
+			index.writeLong(attrs.lastModifiedTime().toMillis());
+			index.writeInt(stringOffsets.length);
+			index.writeInt(classes.size());
+			// offsets are relative to the start of the string data, class data follows the string data
+			for (int offset : stringOffsets)
+				index.writeInt(offset);
+			for (int i = 0; i < names.length; i++) {
+				index.writeInt(names[i]);
+				index.writeInt(strings.size() + offsets[i]);
+			}
+			strings.writeTo(index);
+			body.writeTo(index);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return the index file for the given jar, named after the jar and a hash of its path
+	 */
+	private Path getFile(Path jar) {
+		String path = jar.toAbsolutePath().toString();
+		return dir.resolve(jar.getFileName() + "-" + Integer.toHexString(path.hashCode()) + ".idx");
+	}
+
+	private static int index(Map<String, Integer> table, String s) {
+		Integer index = table.get(s);
+		if (index == null) {
+			index = table.size();
+			table.put(s, index);
+		}
+		return index;
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getShort() & 0xFFFF];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF)
+			throw new IOException("String is too long to be indexed: " + s);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * The classes of an opened index, decoded as they are asked for. Safe to use from multiple threads.
+	 */
+	public static class Skeletons {
+
+		private final ByteBuffer buffer;
+		private final int[] stringOffsets;
+		private final String[] strings;
+		private final Map<String, Integer> classes = new HashMap<>();
+
+		private Skeletons(ByteBuffer in) {
+			int stringCount = in.getInt();
+			int classCount = in.getInt();
+			stringOffsets = new int[stringCount];
+			for (int i = 0; i < stringCount; i++)
+				stringOffsets[i] = in.getInt();
+			strings = new String[stringCount];
+			int[] names = new int[classCount];
+			int[] offsets = new int[classCount];
+			for (int i = 0; i < classCount; i++) {
+				names[i] = in.getInt();
+				offsets[i] = in.getInt();
+			}
+			buffer = in.slice();
+			for (int i = 0; i < classCount; i++)
+				classes.put(string(names[i]), offsets[i]);
+		}
+
+		public Set<String> names() {
+			return Collections.unmodifiableSet(classes.keySet());
+		}
+
+		/**
+		 * @return the skeleton of the given class, a new node on every call, or null if the jar doesn't have it
+		 */
+		public ClassNode get(String name) {
+			Integer offset = classes.get(name);
+			if (offset == null)
+				return null;
+			ByteBuffer in = buffer.duplicate();
+			in.position(offset);
+			ClassNode c = new ClassNode();
+			c.name = name;
+			c.access = in.getInt();
+			int superName = in.getInt();
+			c.superName = superName == -1 ? null : string(superName);
+			for (int i = in.getShort() & 0xFFFF; i > 0; i--)
+				c.interfaces.add(string(in.getInt()));
+			for (int i = in.getInt(); i > 0; i--)
+				c.fields.add(new FieldNode(in.getInt(), string(in.getInt()), string(in.getInt()), null, null));
+			for (int i = in.getInt(); i > 0; i--)
+				c.methods.add(new MethodNode(in.getInt(), string(in.getInt()), string(in.getInt()), null, null));
+			return c;
+		}
+
+		private String string(int index) {
+			String s = strings[index];
+			if (s == null) {
+				ByteBuffer in = buffer.duplicate();
+				in.position(stringOffsets[index]);
+				strings[index] = s = readString(in);
+			}
+			return s;
+		}
+
+	}
+
+}
@@ -12,53 +12,238 @@ import org.apache.logging.log4j.Logger;
 import org.objectweb.asm.*;
 import org.objectweb.asm.tree.*;
 
-import java.io.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
 import java.util.*;
-import java.util.jar.*;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * @author Caleb Whiting
  *
- * Loads/caches jar files found in java.class.path as {@link ClassNode} objects and stores them in a map for conveneience.
+ * Resolves library classes as {@link ClassNode} skeletons (no code or debug information), from the JDK, the jar
+ * files found in java.class.path and any library {@link #add(Path) added} to it. Like the JVM, it follows the
+ * Class-Path attribute in the manifest of each jar, so that running from a jar finds the libraries it lists.
+ * <p>
+ * Nothing is parsed up front. A library only lists the classes it has, and a class is parsed the first time it's
+ * asked for. The JDK is read from the jrt:/ file system where there is one, otherwise from sun.boot.class.path. A
+ * class that ASM can't read is skipped with a warning, and counts as missing.
+ * <p>
+ * If the {@value #INDEX_PROPERTY} system property names a directory, jar files are kept in a {@link ClassIndex}
+ * there, so that only the first run over a jar parses it. Without it nothing is written outside the output.
  */
-public class ClassPath extends HashMap<String, ClassNode> {
+public class ClassPath {
 
 	private static final Logger log = LogManager.getLogger("ClassPath");
 
+	public static final String INDEX_PROPERTY = "jasmo.index";
+
+	private static final ClassNode MISSING = new ClassNode();
+
 	private static ClassPath instance;
 
+	private final ClassIndex index;
+	private final List<Library> libraries = new ArrayList<>();
+	/**
+	 * the jar files and directories of the libraries, not counting the JDK
+	 */
+	private final List<Path> paths = new ArrayList<>();
+	private final Map<String, ClassNode> classes = new HashMap<>();
+
 	private ClassPath() {
+		String dir = System.getProperty(INDEX_PROPERTY, "");
+		index = dir.isEmpty() ? null : new ClassIndex(Paths.get(dir));
+		addJdk();
 		String[] classpath = System.getProperty("java.class.path").split(System.getProperty("path.separator"));
-		Stream.of(classpath).filter(path -> path.endsWith(".jar")).forEach(this::append);
+		Stream.of(classpath).filter(path -> path.endsWith(".jar")).forEach(path -> add(Paths.get(path)));
+	}
+
+	private void addJdk() {
+		try {
+			FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+			log.debug("Loading JDK from jrt:/");
+			libraries.add(new JrtLibrary(jrt));
+			return;
+		} catch (ProviderNotFoundException | FileSystemNotFoundException e) {
+			// before java 9
+		}
+		String boot = System.getProperty("sun.boot.class.path");
+		if (boot == null)
+			return;
+		for (String path : boot.split(System.getProperty("path.separator"))) {
+			if (path.endsWith(".jar") && Files.exists(Paths.get(path)))
+				add(Paths.get(path));
+		}
+	}
+
+	/**
+	 * Adds a library jar file or class directory, after those already on the class path
+	 */
+	public synchronized void add(Path path) {
+		path = path.toAbsolutePath().normalize();
+		if (paths.contains(path))
+			return;
+		try {
+			if (Files.isDirectory(path)) {
+				log.debug("Loading library directory: {}", path);
+				libraries.add(new DirectoryLibrary(path));
+				paths.add(path);
+			} else {
+				libraries.add(openJar(path));
+				paths.add(path);
+				addManifestClassPath(path);
+			}
+		} catch (IOException e) {
+			log.error("An error occurred while reading jar file: {}", path, e);
+		}
+	}
+
+	/**
+	 * Adds the jar files and directories listed in the Class-Path attribute of the jar's manifest, which are
+	 * relative to the directory of the jar, the same way the JVM finds them when running it
+	 */
+	public synchronized void addManifestClassPath(Path jar) {
+		String attribute = null;
+		try (Archive archive = new Archive(jar)) {
+			for (Archive.Entry entry : archive.entries()) {
+				if (entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					Manifest manifest = new Manifest(new ByteArrayInputStream(archive.read(entry)));
+					attribute = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+					break;
+				}
+			}
+		} catch (IOException e) {
+			log.error("An error occurred while reading the manifest of jar file: {}", jar, e);
+			return;
+		}
+		if (attribute == null || attribute.trim().isEmpty())
+			return;
+		URI base = jar.toAbsolutePath().getParent().toUri();
+		for (String entry : attribute.trim().split("\\s+")) {
+			Path path;
+			try {
+				path = Paths.get(base.resolve(entry));
+			} catch (IllegalArgumentException | FileSystemNotFoundException e) {
+				log.warn("Ignoring class path entry {} in the manifest of {}", entry, jar);
+				continue;
+			}
+			if (Files.exists(path)) {
+				log.debug("Following class path entry {} in the manifest of {}", entry, jar);
+				add(path);
+			} else {
+				log.warn("Class path entry {} in the manifest of {} doesn't exist", entry, jar);
+			}
+		}
 	}
 
-	private void append(String jarPath) {
-		log.debug("Loading library from classpath: {}", jarPath);
-		try(JarFile jar = new JarFile(jarPath)) {
-			Enumeration<JarEntry> entries = jar.entries();
-			while (entries.hasMoreElements()) {
-				JarEntry entry = entries.nextElement();
-				try (InputStream in = jar.getInputStream(entry)) {
-					if (entry.getName().endsWith(".class")) {
-						byte[] bytes;
-						try (ByteArrayOutputStream tmp = new ByteArrayOutputStream()) {
-							byte[] buf = new byte[256];
-							for (int n; (n = in.read(buf)) != -1; ) {
-								tmp.write(buf, 0, n);
-							}
-							bytes = tmp.toByteArray();
-						}
-						ClassNode c = new ClassNode();
-						ClassReader r = new ClassReader(bytes);
-						r.accept(c, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG);
-						put(c.name, c);
-					}
+	private Library openJar(Path jar) throws IOException {
+		ClassIndex.Skeletons skeletons = index == null ? null : index.read(jar);
+		if (skeletons != null) {
+			log.debug("Loading library from index: {}", jar);
+			return new IndexedLibrary(skeletons);
+		}
+		if (index == null) {
+			log.debug("Loading library from classpath: {}", jar);
+			return new JarLibrary(jar);
+		}
+		// the jar is read once in full to index it, every later run only decodes what it needs
+		log.debug("Indexing library from classpath: {}", jar);
+		BasicFileAttributes attrs = Files.readAttributes(jar, BasicFileAttributes.class);
+		Map<String, ClassNode> classes = new LinkedHashMap<>();
+		// only hierarchy information is needed here, so signatures aren't verified
+		try (Archive archive = new Archive(jar)) {
+			for (Archive.Entry entry : archive.entries()) {
+				if (entry.getName().endsWith(".class")) {
+					ClassNode c = parse(archive.read(entry));
+					if (c != null)
+						classes.put(c.name, c);
 				}
 			}
+		}
+		try {
+			index.write(jar, attrs, classes.values());
 		} catch (IOException e) {
-			log.error("An error occurred while reading jar file: {}", jarPath, e);
+			log.warn("Failed to index jar file: {}", jar, e);
+		}
+		return new IndexedLibrary(classes);
+	}
+
+	/**
+	 * @return the skeleton of the given class, or null if no library has it
+	 */
+	public synchronized ClassNode get(String name) {
+		ClassNode c = classes.get(name);
+		if (c == null) {
+			c = find(name);
+			classes.put(name, c == null ? MISSING : c);
 		}
+		return c == MISSING ? null : c;
+	}
+
+	private ClassNode find(String name) {
+		for (Library library : libraries) {
+			try {
+				ClassNode c = library.find(name);
+				if (c != null)
+					return c;
+			} catch (IOException | UncheckedIOException e) {
+				log.error("An error occurred while reading library class: {}", name, e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the skeleton of the class, or null if ASM can't read it, such as a class file newer than it knows
+	 */
+	private static ClassNode parse(byte[] bytes) {
+		ClassNode c = new ClassNode();
+		try {
+			new ClassReader(bytes).accept(c, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG);
+		} catch (RuntimeException e) {
+			String name = c.name;
+			if (name == null && bytes.length > 8)
+				name = "of version " + (bytes[6] << 8 | bytes[7] & 0xFF);
+			log.warn("Skipping library class {} that can't be read: {}", name, e.toString());
+			return null;
+		}
+		return c;
+	}
+
+	/**
+	 * @return a digest of the JDK version and of the path, size and modification time of every library jar and of
+	 * every file in library directories, which changes whenever a library class might have
+	 */
+	public synchronized String getFingerprint() throws IOException {
+		MessageDigest digest = DigestHelper.sha1();
+		DigestHelper.update(digest, System.getProperty("java.home"));
+		DigestHelper.update(digest, System.getProperty("java.version"));
+		for (Path path : paths) {
+			List<Path> files = new ArrayList<>();
+			if (Files.isDirectory(path)) {
+				try (Stream<Path> stream = Files.walk(path)) {
+					stream.filter(Files::isRegularFile).sorted().forEach(files::add);
+				}
+			} else {
+				files.add(path);
+			}
+			DigestHelper.update(digest, path.toAbsolutePath().toString());
+			for (Path file : files) {
+				BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+				DigestHelper.update(digest, path.relativize(file).toString());
+				DigestHelper.update(digest, Long.toString(attrs.size()));
+				DigestHelper.update(digest, Long.toString(attrs.lastModifiedTime().toMillis()));
+			}
+		}
+		return DigestHelper.toHex(digest.digest());
 	}
 
 	public static ClassPath getInstance() {
@@ -67,4 +252,111 @@ public class ClassPath extends HashMap<String, ClassNode> {
 		return instance;
 	}
 
+	private static abstract class Library {
+
+		/**
+		 * @return the class, or null if this library doesn't have it
+		 */
+		abstract ClassNode find(String name) throws IOException;
+
+	}
+
+	private static class IndexedLibrary extends Library {
+
+		private final ClassIndex.Skeletons skeletons;
+		private final Map<String, ClassNode> classes;
+
+		IndexedLibrary(ClassIndex.Skeletons skeletons) {
+			this.skeletons = skeletons;
+			this.classes = null;
+		}
+
+		IndexedLibrary(Map<String, ClassNode> classes) {
+			this.skeletons = null;
+			this.classes = classes;
+		}
+
+		@Override
+		ClassNode find(String name) {
+			return skeletons != null ? skeletons.get(name) : classes.get(name);
+		}
+
+	}
+
+	private static class JarLibrary extends Library {
+
+		private final Archive archive;
+		private final Map<String, Archive.Entry> entries = new HashMap<>();
+
+		JarLibrary(Path jar) throws IOException {
+			this.archive = new Archive(jar);
+			for (Archive.Entry entry : archive.entries()) {
+				String name = entry.getName();
+				if (name.endsWith(".class"))
+					entries.put(name.substring(0, name.length() - 6), entry);
+			}
+		}
+
+		@Override
+		ClassNode find(String name) throws IOException {
+			Archive.Entry entry = entries.get(name);
+			return entry == null ? null : parse(archive.read(entry));
+		}
+
+	}
+
+	private static class DirectoryLibrary extends Library {
+
+		private final Path root;
+
+		DirectoryLibrary(Path root) {
+			this.root = root;
+		}
+
+		@Override
+		ClassNode find(String name) throws IOException {
+			Path file = root.resolve(name + ".class");
+			return Files.isRegularFile(file) ? parse(Files.readAllBytes(file)) : null;
+		}
+
+	}
+
+	private static class JrtLibrary extends Library {
+
+		private final FileSystem jrt;
+		/**
+		 * package name to the modules that have it
+		 */
+		private final Map<String, List<String>> modules = new HashMap<>();
+
+		JrtLibrary(FileSystem jrt) {
+			this.jrt = jrt;
+		}
+
+		@Override
+		ClassNode find(String name) throws IOException {
+			int n = name.lastIndexOf('/');
+			if (n == -1)
+				return null;
+			String pkg = name.substring(0, n).replace('/', '.');
+			for (String module : modules.computeIfAbsent(pkg, p -> list(jrt.getPath("/packages", p)))) {
+				Path file = jrt.getPath("/modules", module, name + ".class");
+				if (Files.exists(file))
+					return parse(Files.readAllBytes(file));
+			}
+			return null;
+		}
+
+		private List<String> list(Path dir) {
+			if (!Files.isDirectory(dir))
+				return Collections.emptyList();
+			try (Stream<Path> stream = Files.list(dir)) {
+				return stream.map(path -> path.getFileName().toString()).collect(Collectors.toList());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author Caleb Whiting
+ *
+ * The SHA-1 digests behind fingerprints and cache keys
+ */
+public class DigestHelper {
+
+	/**
+	 * @return a new SHA-1 digest, which every JVM has
+	 */
+	public static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds the string to the digest, followed by a 0 byte so that consecutive strings can't run into each other
+	 */
+	public static void update(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * @return the digest as lower case hex
+	 */
+	public static String toHex(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = Character.forDigit(digest[i] >> 4 & 0xF, 16);
+			hex[i * 2 + 1] = Character.forDigit(digest[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Gives keys of one or two strings dense ids, starting at 0 in the order they are added. The ids are kept in an open
+ * addressing hash table of ints, so neither adding nor looking up a key allocates anything; a key of two strings is
+ * hashed as it is, without joining them.
+ * <p>
+ * Looking up keys is safe from multiple threads, as long as none are being added at the same time.
+ */
+public class IdTable {
+
+	private String[] firsts = new String[16];
+	private String[] seconds = new String[16];
+	/**
+	 * id + 1 of the key in each slot, 0 for an empty slot
+	 */
+	private int[] slots = new int[32];
+	private int size;
+
+	/**
+	 * Adds the key, unless it is already in the table
+	 *
+	 * @return the id of the key
+	 */
+	public int add(String first) {
+		return add(first, null);
+	}
+
+	/**
+	 * Adds the key, unless it is already in the table
+	 *
+	 * @return the id of the key
+	 */
+	public int add(String first, String second) {
+		int slot = find(first, second);
+		if (slots[slot] != 0)
+			return slots[slot] - 1;
+		if (size == firsts.length) {
+			firsts = Arrays.copyOf(firsts, size * 2);
+			seconds = Arrays.copyOf(seconds, size * 2);
+		}
+		firsts[size] = first;
+		seconds[size] = second;
+		slots[slot] = ++size;
+		// at most half full, so that probe sequences stay short
+		if (size * 2 > slots.length)
+			rehash();
+		return size - 1;
+	}
+
+	/**
+	 * @return the id of the key, or -1 if it isn't in the table
+	 */
+	public int get(String first) {
+		return get(first, null);
+	}
+
+	/**
+	 * @return the id of the key, or -1 if it isn't in the table
+	 */
+	public int get(String first, String second) {
+		return slots[find(first, second)] - 1;
+	}
+
+	public String getFirst(int id) {
+		if (id >= size)
+			throw new IndexOutOfBoundsException("Id: " + id + ", Size: " + size);
+		return firsts[id];
+	}
+
+	public String getSecond(int id) {
+		if (id >= size)
+			throw new IndexOutOfBoundsException("Id: " + id + ", Size: " + size);
+		return seconds[id];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		Arrays.fill(firsts, 0, size, null);
+		Arrays.fill(seconds, 0, size, null);
+		Arrays.fill(slots, 0);
+		size = 0;
+	}
+
+	/**
+	 * @return the slot holding the key, or the empty slot it would go into
+	 */
+	private int find(String first, String second) {
+		int mask = slots.length - 1;
+		int slot = hash(first, second) & mask;
+		while (true) {
+			int id = slots[slot] - 1;
+			if (id == -1 || first.equals(firsts[id]) && (second == null ? seconds[id] == null : second.equals(seconds[id])))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	private void rehash() {
+		int[] old = slots;
+		slots = new int[old.length * 2];
+		int mask = slots.length - 1;
+		for (int id : old) {
+			if (id == 0)
+				continue;
+			int slot = hash(firsts[id - 1], seconds[id - 1]) & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = id;
+		}
+	}
+
+	private static int hash(String first, String second) {
+		int h = first.hashCode() * 31 + (second == null ? 0 : second.hashCode());
+		// spread the high bits into the low ones, which pick the slot
+		h *= 0x9E3779B9;
+		return h ^ h >>> 16;
+	}
+
+	/**
+	 * @return the ids 0 to count - 1, in random order
+	 */
+	public static int[] shuffle(int count) {
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++)
+			ids[i] = i;
+		Random random = ThreadLocalRandom.current();
+		for (int i = count - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = ids[i];
+			ids[i] = ids[j];
+			ids[j] = t;
+		}
+		return ids;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * @author Caleb Whiting
+ */
+public class Parallel {
+
+	/**
+	 * Runs the task for every index in [0, count), on a pool of the given size if it's more than one thread.
+	 * Returns once every index has been processed. If a task fails, the workers don't start any more indices, and
+	 * the first failure is rethrown once all of them have stopped.
+	 */
+	public static void forEach(int threads, int count, IntConsumer task) {
+		if (threads <= 1 || count <= 1) {
+			for (int i = 0; i < count; i++) {
+				task.accept(i);
+			}
+			return;
+		}
+		AtomicInteger next = new AtomicInteger();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Callable<Void>> workers = new ArrayList<>();
+		for (int t = 0; t < Math.min(threads, count); t++) {
+			workers.add(() -> {
+				for (int i; failure.get() == null && (i = next.getAndIncrement()) < count; ) {
+					try {
+						task.accept(i);
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+				return null;
+			});
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+		try {
+			// waits for every worker, none of them throws
+			pool.invokeAll(workers);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for worker threads", e);
+		} finally {
+			pool.shutdown();
+		}
+		Throwable e = failure.get();
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		if (e instanceof Error)
+			throw (Error) e;
+		if (e != null)
+			throw new IllegalStateException(e);
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+import java.util.*;
+
+/**
+ * @author Caleb Whiting
+ *
+ * An ordered list of distinct strings, indexed by a hash table so adding and looking up a string takes constant time.
+ */
+public class StringPool {
+
+	private final List<String> strings = new ArrayList<>();
+	private final Map<String, Integer> indices = new HashMap<>();
+
+	/**
+	 * Appends the string, unless it is already in the pool
+	 *
+	 * @return the index of the string
+	 */
+	public int add(String string) {
+		Integer index = indices.get(string);
+		if (index != null)
+			return index;
+		indices.put(string, strings.size());
+		strings.add(string);
+		return strings.size() - 1;
+	}
+
+	public void addAll(Collection<String> strings) {
+		for (String string : strings)
+			add(string);
+	}
+
+	/**
+	 * @return the index of the string, or -1 if it isn't in the pool
+	 */
+	public int indexOf(String string) {
+		Integer index = indices.get(string);
+		return index == null ? -1 : index;
+	}
+
+	public String get(int index) {
+		return strings.get(index);
+	}
+
+	public int size() {
+		return strings.size();
+	}
+
+	/**
+	 * Shuffles the strings from the given index onwards, those before it keep their index
+	 */
+	public void shuffle(int from, Random random) {
+		List<String> tail = strings.subList(from, strings.size());
+		Collections.shuffle(tail, random);
+		for (int i = from; i < strings.size(); i++)
+			indices.put(strings.get(i), i);
+	}
+
+	/**
+	 * @return the strings in order, as a read only view of the pool
+	 */
+	public List<String> asList() {
+		return Collections.unmodifiableList(strings);
+	}
+
+}
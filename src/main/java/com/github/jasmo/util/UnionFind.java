@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.util;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Disjoint sets over the elements [0, size), with union by size and path halving.
+ */
+public class UnionFind {
+
+	private final int[] parent;
+	private final int[] size;
+
+	public UnionFind(int size) {
+		this.parent = new int[size];
+		this.size = new int[size];
+		for (int i = 0; i < size; i++) {
+			parent[i] = i;
+			this.size[i] = 1;
+		}
+	}
+
+	/**
+	 * @return the representative of the set the element is in
+	 */
+	public int find(int e) {
+		while (parent[e] != e) {
+			parent[e] = parent[parent[e]];
+			e = parent[e];
+		}
+		return e;
+	}
+
+	/**
+	 * Merges the sets of the two elements
+	 *
+	 * @return the representative of the merged set
+	 */
+	public int union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a == b)
+			return a;
+		if (size[a] < size[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		parent[b] = a;
+		size[a] += size[b];
+		return a;
+	}
+
+}
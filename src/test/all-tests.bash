@@ -1,3 +1,4 @@
 #!/bin/bash
 echo 'Running Test [1]' && src/test/obfuscate-self.bash && \
-echo 'Running Test [2]' && src/test/obfuscate-self-with-obfuscated.bash
+echo 'Running Test [2]' && src/test/obfuscate-self-with-obfuscated.bash && \
+echo 'Running Test [3]' && src/test/pattern-tests.bash
@@ -0,0 +1,413 @@
+/*
+ * Copyright © 2017 Caleb Whiting <caleb.andrew.whiting@gmail.com>
+ * This work is free. You can redistribute it and/or modify it under the
+ * terms of the Do What The Fuck You Want To Public License, Version 2,
+ * as published by Sam Hocevar. See the COPYING file for more details.
+ */
+
+package com.github.jasmo.query;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * @author Caleb Whiting
+ *
+ * Checks the matches {@link Automaton} finds for greedy repetition, captures, alternatives and the matches of
+ * several patterns at once, exiting with a non-zero status if any of them is wrong. Besides a few hand written
+ * cases, random patterns are checked against a plain backtracking matcher. Run by src/test/pattern-tests.bash.
+ */
+public class PatternCheck {
+
+	private static final Query A = new Query("opcode", Opcodes.ICONST_0);
+	private static final Query B = new Query("opcode", Opcodes.ICONST_1);
+	private static final Query C = new Query("opcode", Opcodes.ICONST_2);
+	private static final Query RETURN = new Query("opcode", Opcodes.RETURN);
+
+	private static int checks;
+	private static int failures;
+
+	public static void main(String[] args) {
+		greedyRepetition();
+		boundedRepetition();
+		greedyBeforeTail();
+		captures();
+		alternatives();
+		overlappingMatches();
+		anchoredMatches();
+		skipsPseudoInstructions();
+		againstBacktracking();
+		System.out.println(failures == 0 ? "OK " + checks + " checks" : "FAILED " + failures + " of " + checks + " checks");
+		if (failures != 0)
+			System.exit(1);
+	}
+
+	private static void greedyRepetition() {
+		InsnList list = list(Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.RETURN);
+		List<Match> matches = Automaton.compile(Pattern.repeat(A)).findAll(list);
+		check("a* takes every a", matches.size() == 1 && matches.get(0).size() == 3);
+		check("a* starts at the first a", matches.size() == 1 && matches.get(0).getFirst() == list.getFirst());
+		matches = Automaton.compile(Pattern.repeat(A, 1, -1)).findAll(list(Opcodes.ICONST_0, Opcodes.RETURN, Opcodes.ICONST_0, Opcodes.ICONST_0));
+		check("a+ matches each run of a", sizes(matches).equals("1,2"));
+	}
+
+	private static void boundedRepetition() {
+		InsnList list = list(Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_0);
+		List<Match> matches = Automaton.compile(Pattern.repeat(A, 1, 2)).findAll(list);
+		check("a{1,2} takes two at a time", sizes(matches).equals("2,2,1"));
+		matches = Automaton.compile(Pattern.seq(A, Pattern.optional(B))).findAll(list(Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_0));
+		check("ab? takes the b when it can", sizes(matches).equals("2,1"));
+	}
+
+	private static void greedyBeforeTail() {
+		InsnList list = list(Opcodes.NOP, Opcodes.RETURN, Opcodes.NOP, Opcodes.RETURN);
+		List<Match> matches = Automaton.compile(Pattern.seq(Pattern.repeat(Pattern.any()), RETURN)).findAll(list);
+		check(".*return runs to the last return", matches.size() == 1 && matches.get(0).size() == 4 && matches.get(0).getLast() == list.getLast());
+		matches = Automaton.compile(Pattern.seq(Pattern.repeat(A), A)).findAll(list(Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_0));
+		check("a*a gives back one a", sizes(matches).equals("3"));
+	}
+
+	private static void captures() {
+		InsnList list = list(Opcodes.ICONST_1, Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_2);
+		Match match = Automaton.compile(Pattern.seq(B, Pattern.capture("a", Pattern.repeat(A)), C)).matches(list);
+		check("capture matches", match != null);
+		if (match != null) {
+			check("capture starts at its first instruction", match.getFirst("a") == list.get(1));
+			check("capture ends at its last instruction", match.getLast("a") == list.get(2));
+			check("unknown capture is null", match.getFirst("b") == null);
+		}
+		match = Automaton.compile(Pattern.seq(B, Pattern.capture("a", Pattern.repeat(A)), C)).matches(list(Opcodes.ICONST_1, Opcodes.ICONST_2));
+		check("empty capture matches", match != null);
+		if (match != null)
+			check("empty capture is null", match.getFirst("a") == null && match.getLast("a") == null);
+		list = list(Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_0, Opcodes.ICONST_1);
+		List<Match> matches = Automaton.compile(Pattern.capture("b", Pattern.seq(A, B))).findAll(list);
+		check("captures are kept per match", matches.size() == 2 &&
+				matches.get(0).getFirst("b") == list.get(0) && matches.get(1).getFirst("b") == list.get(2));
+	}
+
+	private static void alternatives() {
+		InsnList list = list(Opcodes.ICONST_0, Opcodes.ICONST_1);
+		List<Match> matches = Automaton.compile(Pattern.anyOf(Pattern.seq(A, B), A)).findAll(list);
+		check("ab|a prefers ab", sizes(matches).equals("2"));
+		matches = Automaton.compile(Pattern.anyOf(A, Pattern.seq(A, B))).findAll(list);
+		check("a|ab prefers a", sizes(matches).equals("1"));
+		matches = Automaton.compile(Pattern.seq(Pattern.anyOf(B, A), Pattern.anyOf(A, B))).findAll(list);
+		check("(b|a)(a|b) tries every alternative", sizes(matches).equals("2"));
+		matches = Automaton.compile(Pattern.anyOf()).findAll(list);
+		check("no alternatives match nothing", matches.isEmpty());
+		matches = Automaton.compile(Pattern.seq(new AnyOf(A, C), B)).findAll(list);
+		check("AnyOf elements are alternatives", sizes(matches).equals("2"));
+	}
+
+	private static void overlappingMatches() {
+		InsnList list = list(Opcodes.ICONST_0, Opcodes.ICONST_1, Opcodes.ICONST_2);
+		List<Match> matches = Automaton.compile(Pattern.seq(A, B), Pattern.seq(B, C)).findAll(list);
+		check("matches of different patterns overlap", matches.size() == 2);
+		if (matches.size() == 2) {
+			Match ab = matches.get(0).getPattern() == 0 ? matches.get(0) : matches.get(1);
+			Match bc = matches.get(0).getPattern() == 1 ? matches.get(0) : matches.get(1);
+			check("each match tells its pattern", ab.getPattern() == 0 && bc.getPattern() == 1);
+			check("overlapping matches share an instruction", ab.getLast() == list.get(1) && bc.getFirst() == list.get(1));
+		}
+		matches = Automaton.compile(Pattern.seq(A, A)).findAll(list(Opcodes.ICONST_0, Opcodes.ICONST_0, Opcodes.ICONST_0));
+		check("matches of one pattern don't overlap", sizes(matches).equals("2"));
+		matches = Automaton.compile(Pattern.seq(A, A), Pattern.seq(A)).findAll(list(Opcodes.ICONST_0, Opcodes.ICONST_0));
+		check("a shorter pattern matches inside a longer one", matches.size() == 3);
+	}
+
+	private static void anchoredMatches() {
+		InsnList list = list(Opcodes.ICONST_0, Opcodes.ICONST_1);
+		check("matches takes the whole list", Automaton.compile(Pattern.seq(A)).matches(list) == null);
+		Match match = Automaton.compile(Pattern.seq(B, A), Pattern.seq(A, B), Pattern.seq(A, Pattern.any())).matches(list);
+		check("matches gives the first pattern that matches", match != null && match.getPattern() == 1);
+		check("empty list matches nothing", Automaton.compile(Pattern.repeat(A)).matches(new InsnList()) == null);
+	}
+
+	private static void skipsPseudoInstructions() {
+		InsnList list = new InsnList();
+		list.add(new LabelNode());
+		list.add(new InsnNode(Opcodes.ICONST_0));
+		list.add(new LineNumberNode(1, new LabelNode()));
+		list.add(new InsnNode(Opcodes.ICONST_1));
+		list.add(new LabelNode());
+		Match match = Automaton.compile(Pattern.seq(A, B)).matches(list);
+		check("labels and line numbers are skipped", match != null && match.size() == 2);
+		if (match != null)
+			check("match ends at a real instruction", match.getFirst() == list.get(1) && match.getLast() == list.get(3));
+	}
+
+	/**
+	 * Compiles random patterns together and checks the matches of each against those a backtracking matcher finds
+	 * for it alone: leftmost, then the first alternative and the most repetitions, then the next match after it
+	 */
+	private static void againstBacktracking() {
+		Random random = new Random(17);
+		int mismatches = 0;
+		for (int run = 0; run < 3000; run++) {
+			Node[] nodes = new Node[1 + random.nextInt(3)];
+			Pattern[] patterns = new Pattern[nodes.length];
+			for (int i = 0; i < nodes.length; i++) {
+				nodes[i] = Node.random(random, 3);
+				patterns[i] = nodes[i].toPattern();
+			}
+			int[] input = new int[random.nextInt(10)];
+			for (int i = 0; i < input.length; i++)
+				input[i] = Opcodes.ICONST_0 + random.nextInt(3);
+			List<String> actual = new ArrayList<>();
+			for (int i = 0; i < nodes.length; i++)
+				actual.add("");
+			InsnList list = list(input);
+			for (Match match : Automaton.compile(patterns).findAll(list)) {
+				int start = list.indexOf(match.getFirst());
+				actual.set(match.getPattern(), actual.get(match.getPattern()) + start + "-" + (start + match.size() - 1) + " ");
+			}
+			for (int i = 0; i < nodes.length; i++) {
+				String expected = findAll(nodes[i], input);
+				if (!expected.equals(actual.get(i)) && mismatches++ < 5)
+					System.out.println("  " + nodes[i] + " over " + toString(input) + ": expected " + expected + "but got " + actual.get(i));
+			}
+			Node node = nodes[0];
+			Match match = Automaton.compile(patterns[0]).matches(list);
+			boolean whole = input.length > 0 && node.match(input, 0, end -> end == input.length);
+			if (whole != (match != null) && mismatches++ < 5)
+				System.out.println("  " + node + " over " + toString(input) + ": expected " + (whole ? "" : "no ") + "match of the whole list");
+		}
+		check("random patterns match like a backtracking matcher", mismatches == 0);
+	}
+
+	private static String findAll(Node node, int[] input) {
+		StringBuilder sb = new StringBuilder();
+		int start = 0;
+		while (start < input.length) {
+			int[] end = {-1};
+			int s = start;
+			for (; s < input.length; s++) {
+				int from = s;
+				if (node.match(input, s, e -> {
+					if (e == from)
+						return false;
+					end[0] = e;
+					return true;
+				})) {
+					break;
+				}
+			}
+			if (end[0] == -1)
+				break;
+			sb.append(s).append('-').append(end[0] - 1).append(' ');
+			start = end[0];
+		}
+		return sb.toString();
+	}
+
+	private static String toString(int[] input) {
+		StringBuilder sb = new StringBuilder();
+		for (int opcode : input)
+			sb.append((char) ('a' + opcode - Opcodes.ICONST_0));
+		return sb.toString();
+	}
+
+	/**
+	 * A pattern over the instructions iconst_0 to iconst_2, as 'a' to 'c', that matches itself by backtracking
+	 */
+	private static abstract class Node {
+
+		static Node random(Random random, int depth) {
+			int kind = depth == 0 ? random.nextInt(2) : random.nextInt(6);
+			switch (kind) {
+				case 0:
+					return new Insn(Opcodes.ICONST_0 + random.nextInt(3));
+				case 1:
+					return random.nextInt(4) == 0 ? new Insn(-1) : new Insn(Opcodes.ICONST_0 + random.nextInt(3));
+				case 2:
+				case 3: {
+					Node[] nodes = new Node[random.nextInt(4)];
+					for (int i = 0; i < nodes.length; i++)
+						nodes[i] = random(random, depth - 1);
+					return kind == 2 ? new Seq(nodes) : new Alt(nodes);
+				}
+				default: {
+					int min = random.nextInt(3);
+					int max = random.nextInt(3) == 0 ? -1 : min + random.nextInt(3);
+					return new Repeat(random(random, depth - 1), min, max);
+				}
+			}
+		}
+
+		/**
+		 * @return whether the node matches from the position with an end the continuation accepts, trying each way
+		 * in order of priority
+		 */
+		abstract boolean match(int[] input, int pos, IntPredicate next);
+
+		abstract Pattern toPattern();
+
+	}
+
+	private static class Insn extends Node {
+
+		private final int opcode;
+
+		Insn(int opcode) {
+			this.opcode = opcode;
+		}
+
+		@Override
+		boolean match(int[] input, int pos, IntPredicate next) {
+			return pos < input.length && (opcode == -1 || input[pos] == opcode) && next.test(pos + 1);
+		}
+
+		@Override
+		Pattern toPattern() {
+			return opcode == -1 ? Pattern.any() : Pattern.insn(new Query("opcode", opcode));
+		}
+
+		@Override
+		public String toString() {
+			return opcode == -1 ? "." : String.valueOf((char) ('a' + opcode - Opcodes.ICONST_0));
+		}
+
+	}
+
+	private static class Seq extends Node {
+
+		private final Node[] nodes;
+
+		Seq(Node[] nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		boolean match(int[] input, int pos, IntPredicate next) {
+			return match(input, pos, 0, next);
+		}
+
+		private boolean match(int[] input, int pos, int i, IntPredicate next) {
+			if (i == nodes.length)
+				return next.test(pos);
+			return nodes[i].match(input, pos, end -> match(input, end, i + 1, next));
+		}
+
+		@Override
+		Pattern toPattern() {
+			Object[] patterns = new Object[nodes.length];
+			for (int i = 0; i < nodes.length; i++)
+				patterns[i] = nodes[i].toPattern();
+			return Pattern.seq(patterns);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("(");
+			for (Node node : nodes)
+				sb.append(node);
+			return sb.append(')').toString();
+		}
+
+	}
+
+	private static class Alt extends Node {
+
+		private final Node[] nodes;
+
+		Alt(Node[] nodes) {
+			this.nodes = nodes;
+		}
+
+		@Override
+		boolean match(int[] input, int pos, IntPredicate next) {
+			for (Node node : nodes) {
+				if (node.match(input, pos, next))
+					return true;
+			}
+			return false;
+		}
+
+		@Override
+		Pattern toPattern() {
+			Object[] patterns = new Object[nodes.length];
+			for (int i = 0; i < nodes.length; i++)
+				patterns[i] = nodes[i].toPattern();
+			return Pattern.anyOf(patterns);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("(");
+			for (int i = 0; i < nodes.length; i++)
+				sb.append(i == 0 ? "" : "|").append(nodes[i]);
+			return sb.append(')').toString();
+		}
+
+	}
+
+	private static class Repeat extends Node {
+
+		private final Node node;
+		private final int min;
+		private final int max;
+
+		Repeat(Node node, int min, int max) {
+			this.node = node;
+			this.min = min;
+			this.max = max;
+		}
+
+		@Override
+		boolean match(int[] input, int pos, IntPredicate next) {
+			return match(input, pos, 0, next);
+		}
+
+		private boolean match(int[] input, int pos, int count, IntPredicate next) {
+			if (count < min)
+				return node.match(input, pos, end -> match(input, end, count + 1, next));
+			// another time, then stop; unbounded repetition doesn't go round without matching anything
+			if ((max == -1 || count < max) && node.match(input, pos, end -> (max != -1 || end != pos) && match(input, end, count + 1, next)))
+				return true;
+			return next.test(pos);
+		}
+
+		@Override
+		Pattern toPattern() {
+			return Pattern.repeat(node.toPattern(), min, max);
+		}
+
+		@Override
+		public String toString() {
+			return node + "{" + min + "," + (max == -1 ? "" : String.valueOf(max)) + "}";
+		}
+
+	}
+
+	private static InsnList list(int... opcodes) {
+		InsnList list = new InsnList();
+		for (int opcode : opcodes)
+			list.add(new InsnNode(opcode));
+		return list;
+	}
+
+	private static String sizes(List<Match> matches) {
+		StringBuilder sb = new StringBuilder();
+		for (Match match : matches) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(match.size());
+		}
+		return sb.toString();
+	}
+
+	private static void check(String name, boolean passed) {
+		checks++;
+		if (!passed) {
+			failures++;
+			System.out.println("FAIL " + name);
+		}
+	}
+
+}
@@ -12,4 +12,19 @@ java -jar ${jar} \
      --keep com/github/jasmo/Bootstrap --keep com/github/jasmo/util/QueryGenerator \
      --package com/github/jasmo \
      target/java-asm-obfuscator-*.jar \
-     target/result2.jar
\ No newline at end of file
+     target/result2.jar || exit 1
+# errors are only logged, so check that the obfuscated obfuscator wrote the same classes as the original did,
+# rather than empty ones
+count() {
+    unzip -l "$1" | grep -c '\.class$'
+}
+size() {
+    unzip -l "$1" | tail -1 | awk '{print $1}'
+}
+if [ "$(count target/result2.jar)" != "$(count target/result.jar)" ] || \
+   [ "$(size target/result2.jar)" -lt "$(( $(size target/result.jar) * 9 / 10 ))" ]
+then
+    echo "The obfuscated obfuscator wrote $(count target/result2.jar) classes in $(size target/result2.jar) bytes," \
+         "the original wrote $(count target/result.jar) classes in $(size target/result.jar) bytes"
+    exit 1
+fi
@@ -0,0 +1,10 @@
+#!/bin/bash
+# Checks the instruction pattern automaton against hand written cases and a backtracking matcher
+if [ ! -d 'src' ] || [ ! -f 'pom.xml' ]
+then
+    echo 'We appear to be in the wrong directory, this must be ran from the project root'
+    echo $(dir)
+    exit -1
+fi
+mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/classpath.txt || exit 1
+java -cp "target/test-classes:target/classes:$(cat target/classpath.txt)" com.github.jasmo.query.PatternCheck
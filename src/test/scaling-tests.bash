@@ -0,0 +1,12 @@
+#!/bin/bash
+# Obfuscates generated programs of 1k, 10k and 100k classes, failing if time or memory grows much faster than linear
+# Options are passed on to the generator, for example '--fan-out 3 --diamonds 2 --accessors 0.5', see '--help'
+if [ ! -d 'src' ] || [ ! -f 'pom.xml' ] || [ ! -d 'benchmark' ]
+then
+    echo 'We appear to be in the wrong directory, this must be ran from the project root'
+    echo $(dir)
+    exit -1
+fi
+mvn install && (cd benchmark && mvn package) || exit 1
+# the largest program keeps a few gigabytes in use
+java ${JAVA_OPTS:--Xmx8g} -cp benchmark/target/test-classes:benchmark/target/benchmarks.jar com.github.jasmo.benchmark.Scaling "$@"